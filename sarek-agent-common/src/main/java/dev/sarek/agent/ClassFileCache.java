@@ -0,0 +1,228 @@
+package dev.sarek.agent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.function.UnaryOperator;
+
+/**
+ * Persistent, content-addressed cache of transformed class files. For a given original class file and transformer
+ * configuration, transformers like the unfinal or Javassist constructor mock transformer always produce the same
+ * result, so there is no need to parse and rewrite each class again every time the JVM starts.
+ * <p>
+ * Cache entries are keyed by a SHA-256 hash of the original class file, an optional per-class context (e.g. facts
+ * about other classes which influence the transformation result) and a namespace. The namespace is derived from the
+ * transformer configuration and the class files of the transformer implementation and the bytecode libraries it uses,
+ * i.e. a new Sarek or library version or a changed configuration automatically uses a new set of cache entries.
+ * Transformations which leave a class unchanged are cached too.
+ * <p>
+ * The cache is meant to be an optimisation only, so I/O errors are never propagated but result in a cache miss.
+ * Entries are written atomically, so several JVMs can safely share the same cache directory. Old entries are never
+ * evicted, but the cache directory can be deleted at any time.
+ * <p>
+ * Sarek agents activate caching for their own and other Sarek transformers via their {@code cache} option, see
+ * {@link #isActive()}.
+ */
+public class ClassFileCache {
+  /**
+   * Default cache directory {@code ~/.sarek/cache}
+   */
+  public static final Path DEFAULT_DIRECTORY = Paths.get(System.getProperty("user.home"), ".sarek", "cache");
+
+  private static final String LOG_PREFIX = "[Sarek Class File Cache] ";
+  private static final String HASH_ALGORITHM = "SHA-256";
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  // Class loading triggered by cache I/O might trigger the calling transformer again -> bypass the cache
+  private static final ThreadLocal<Boolean> active = ThreadLocal.withInitial(() -> false);
+  // Set by Sarek agents, read by transformers when being created
+  private static volatile boolean cachingActive;
+
+  private final Path directory;
+  private final byte[] namespace;
+
+  /**
+   * @param directory             root directory for all caches, e.g. {@link #DEFAULT_DIRECTORY}
+   * @param configuration         transformer configuration influencing transformation results
+   * @param implementationClasses classes implementing the transformation, usually the transformer class itself plus
+   *                              one class per bytecode library used, e.g. ASM's {@code ClassReader}, so a library
+   *                              upgrade also changes the namespace
+   */
+  public ClassFileCache(Path directory, String configuration, Class<?>... implementationClasses) {
+    MessageDigest digest = createDigest();
+    update(digest, configuration);
+    for (Class<?> implementationClass : implementationClasses) {
+      update(digest, implementationClass.getName());
+      digest.update(hashClassFile(implementationClass));
+    }
+    byte[] namespace = digest.digest();
+    this.namespace = namespace;
+    this.directory = directory.resolve(toHex(namespace).substring(0, 16));
+  }
+
+  /**
+   * @return true if Sarek transformers should cache transformed class files in {@link #DEFAULT_DIRECTORY}, false
+   * otherwise
+   */
+  public static boolean isActive() {
+    return cachingActive;
+  }
+
+  /**
+   * Activate or deactivate class file caching for Sarek transformers created afterwards. Usually called by Sarek
+   * agents, depending on their {@code cache} option.
+   *
+   * @param value true in order to activate caching
+   */
+  public static void setActive(boolean value) {
+    cachingActive = value;
+  }
+
+  /**
+   * Get the transformation result for a class file from the cache, or transform it and store the result in the cache
+   *
+   * @param classFile      original class file
+   * @param transformation transformation to be applied to the class file on a cache miss; return {@code null} in order
+   *                       to signal an unchanged class file. Exceptions are propagated to the caller, and the class
+   *                       file is not cached in this case.
+   * @return transformed class file or {@code null} if the class file remains unchanged
+   */
+  public byte[] transform(byte[] classFile, UnaryOperator<byte[]> transformation) {
+    return transform(classFile, "", transformation);
+  }
+
+  /**
+   * Get the transformation result for a class file from the cache, or transform it and store the result in the cache
+   *
+   * @param classFile      original class file
+   * @param context        additional information influencing the transformation result, e.g. facts about the super
+   *                       class
+   * @param transformation transformation to be applied to the class file on a cache miss; return {@code null} in order
+   *                       to signal an unchanged class file. Exceptions are propagated to the caller, and the class
+   *                       file is not cached in this case.
+   * @return transformed class file or {@code null} if the class file remains unchanged
+   */
+  public byte[] transform(byte[] classFile, String context, UnaryOperator<byte[]> transformation) {
+    if (active.get())
+      return transformation.apply(classFile);
+    Path entry;
+    active.set(true);
+    try {
+      entry = getEntry(classFile, context);
+      try {
+        byte[] cachedClassFile = Files.readAllBytes(entry);
+        // An empty entry represents an unchanged class file
+        return cachedClassFile.length == 0 ? null : cachedClassFile;
+      }
+      catch (NoSuchFileException ignored) {
+        // Cache miss
+      }
+      catch (IOException | SecurityException e) {
+        log("Cannot read cache entry " + entry + ": " + e);
+      }
+    }
+    finally {
+      active.set(false);
+    }
+
+    byte[] transformedClassFile = transformation.apply(classFile);
+
+    active.set(true);
+    try {
+      store(entry, transformedClassFile == null ? new byte[0] : transformedClassFile);
+    }
+    finally {
+      active.set(false);
+    }
+    return transformedClassFile;
+  }
+
+  private Path getEntry(byte[] classFile, String context) {
+    MessageDigest digest = createDigest();
+    digest.update(namespace);
+    update(digest, context);
+    digest.update(classFile);
+    String key = toHex(digest.digest());
+    // Spread entries across subdirectories in order to avoid huge directories
+    return directory.resolve(key.substring(0, 2)).resolve(key + ".class");
+  }
+
+  private void store(Path entry, byte[] classFile) {
+    Path tempFile = null;
+    try {
+      Files.createDirectories(entry.getParent());
+      tempFile = Files.createTempFile(entry.getParent(), entry.getFileName().toString(), ".tmp");
+      Files.write(tempFile, classFile);
+      try {
+        Files.move(tempFile, entry, StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch (AtomicMoveNotSupportedException e) {
+        Files.move(tempFile, entry, StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    catch (IOException | SecurityException e) {
+      log("Cannot write cache entry " + entry + ": " + e);
+      if (tempFile != null) {
+        try {
+          Files.deleteIfExists(tempFile);
+        }
+        catch (IOException | SecurityException ignored) { }
+      }
+    }
+  }
+
+  private static byte[] hashClassFile(Class<?> type) {
+    String resourceName = type.getName().replace('.', '/') + ".class";
+    ClassLoader classLoader = type.getClassLoader();
+    try (
+      InputStream inputStream = classLoader == null
+        ? ClassLoader.getSystemResourceAsStream(resourceName)
+        : classLoader.getResourceAsStream(resourceName)
+    )
+    {
+      if (inputStream == null)
+        return new byte[0];
+      byte[] buffer = new byte[8192];
+      MessageDigest digest = createDigest();
+      int bytesRead;
+      while ((bytesRead = inputStream.read(buffer)) != -1)
+        digest.update(buffer, 0, bytesRead);
+      return digest.digest();
+    }
+    catch (IOException e) {
+      return new byte[0];
+    }
+  }
+
+  private static MessageDigest createDigest() {
+    try {
+      return MessageDigest.getInstance(HASH_ALGORITHM);
+    }
+    catch (NoSuchAlgorithmException e) {
+      // Every Java platform implementation must support SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static void update(MessageDigest digest, String value) {
+    digest.update(value.getBytes(StandardCharsets.UTF_8));
+    // Separator, so that e.g. ("ab", "c") and ("a", "bc") result in different hashes
+    digest.update((byte) 0);
+  }
+
+  private static String toHex(byte[] bytes) {
+    char[] hex = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+      hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+    }
+    return new String(hex);
+  }
+
+  private void log(String message) {
+    System.err.println(LOG_PREFIX + message);
+  }
+}
@@ -0,0 +1,145 @@
+package dev.sarek.agent;
+
+import java.lang.instrument.Instrumentation;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Batches class retransformations triggered by Sarek components like weavers, mock factories or constructor mock
+ * transformers. Each retransformation pauses the application and deoptimises code, so when setting up or tearing down
+ * several components at once, it is cheaper to retransform all affected classes in a single call. Usage:
+ * <pre>
+ * try (WeavingTransaction transaction = WeavingTransaction.begin()) {
+ *   weaver = Weaver.forTypes(...).build();
+ *   mockFactory = MockFactory.forClass(...).build();
+ * }
+ * // Classes are woven now
+ *
+ * try (WeavingTransaction transaction = WeavingTransaction.begin()) {
+ *   weaver.unregisterTransformer();
+ *   mockFactory.close();
+ * }
+ * // Classes are reset now
+ * </pre>
+ * Transactions are bound to the current thread. While a transaction is open, retransformations requested via
+ * {@link #retransform(Collection)} are deferred until the transaction is closed. Nested transactions join the
+ * outermost one, i.e. only closing the outermost transaction retransforms classes.
+ * <p>
+ * Components can register a {@link RetransformationListener} in order to prepare each batch of retransformed classes,
+ * e.g. by precomputing transformed class files.
+ */
+public class WeavingTransaction implements AutoCloseable {
+  private static final ThreadLocal<WeavingTransaction> currentTransaction = new ThreadLocal<>();
+  private static final List<RetransformationListener> listeners = new CopyOnWriteArrayList<>();
+
+  /**
+   * Listener notified before and after each retransformation batch
+   */
+  public interface RetransformationListener {
+    /**
+     * @param classes classes about to be retransformed
+     */
+    void beforeRetransformation(Collection<Class<?>> classes);
+
+    /**
+     * @param classes classes which have been retransformed, successfully or not
+     */
+    void afterRetransformation(Collection<Class<?>> classes);
+  }
+
+  /**
+   * @param listener listener to be notified about retransformations from now on
+   */
+  public static void addListener(RetransformationListener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * @param listener listener no longer to be notified about retransformations
+   */
+  public static void removeListener(RetransformationListener listener) {
+    listeners.remove(listener);
+  }
+
+  // Null for the outermost transaction
+  private final WeavingTransaction outerTransaction;
+  private final Set<Class<?>> pendingClasses = new LinkedHashSet<>();
+  private boolean closed;
+
+  private WeavingTransaction(WeavingTransaction outerTransaction) {
+    this.outerTransaction = outerTransaction;
+  }
+
+  /**
+   * Begin a new transaction for the current thread, joining an already open transaction if any
+   *
+   * @return new transaction, to be closed by the caller
+   */
+  public static WeavingTransaction begin() {
+    WeavingTransaction outerTransaction = currentTransaction.get();
+    WeavingTransaction transaction = new WeavingTransaction(outerTransaction);
+    if (outerTransaction == null)
+      currentTransaction.set(transaction);
+    return transaction;
+  }
+
+  /**
+   * Retransform classes, either immediately or, if a transaction is open on the current thread, when closing it
+   *
+   * @param classes classes to be retransformed
+   */
+  public static void retransform(Collection<Class<?>> classes) {
+    if (classes.isEmpty())
+      return;
+    WeavingTransaction transaction = currentTransaction.get();
+    if (transaction != null)
+      transaction.pendingClasses.addAll(classes);
+    else
+      retransformNow(classes);
+  }
+
+  /**
+   * Close this transaction. If it is the outermost one, retransform all classes requested during the transaction in
+   * one batch.
+   */
+  @Override
+  public void close() {
+    if (closed)
+      return;
+    closed = true;
+    if (outerTransaction != null)
+      return;
+    currentTransaction.remove();
+    retransformNow(pendingClasses);
+    pendingClasses.clear();
+  }
+
+  private static void retransformNow(Collection<Class<?>> classes) {
+    if (classes.isEmpty())
+      return;
+    Instrumentation instrumentation = Agent.getInstrumentation();
+    for (RetransformationListener listener : listeners)
+      listener.beforeRetransformation(classes);
+    try {
+      instrumentation.retransformClasses(classes.toArray(new Class<?>[0]));
+    }
+    catch (Exception | LinkageError batchError) {
+      // Retransformation is all-or-nothing, so retry class by class in order to transform as many classes as possible
+      for (Class<?> type : classes) {
+        try {
+          instrumentation.retransformClasses(type);
+        }
+        catch (Exception | LinkageError error) {
+          System.err.println("[Sarek Agent] Cannot retransform " + type.getName() + ": " + error);
+        }
+      }
+    }
+    finally {
+      for (RetransformationListener listener : listeners)
+        listener.afterRetransformation(classes);
+    }
+  }
+}
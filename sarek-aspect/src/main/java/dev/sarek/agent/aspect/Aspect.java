@@ -1,24 +1,241 @@
 package dev.sarek.agent.aspect;
 
-import dev.sarek.agent.util.BiMultiMap;
+import dev.sarek.agent.util.WeakIdentityMultiMap;
 import net.bytebuddy.asm.Advice;
+import net.bytebuddy.asm.AsmVisitorWrapper;
 import net.bytebuddy.description.method.MethodDescription;
 import net.bytebuddy.dynamic.ClassFileLocator;
 import net.bytebuddy.matcher.ElementMatcher;
 
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
+import java.util.*;
 
 import static dev.sarek.agent.aspect.Aspect.AdviceScope.*;
 import static dev.sarek.agent.aspect.Aspect.AdviceTargetType.*;
 import static net.bytebuddy.matcher.ElementMatchers.*;
 
 public abstract class Aspect<T> {
-  public static final BiMultiMap<Object, Weaver.Builder.AdviceDescription> adviceRegistry = new BiMultiMap<>();
+  /**
+   * Advices registered per target. Targets are held weakly, i.e. the registry itself does not keep them alive. Weavers
+   * hold their targets strongly, unless configured otherwise via {@link Weaver.Builder#weakTargets(boolean)}.
+   */
+  public static final WeakIdentityMultiMap<Object, Weaver.Builder.AdviceDescription> adviceRegistry =
+    new WeakIdentityMultiMap<>();
 
   public static final ClassFileLocator CLASS_FILE_LOCATOR = ClassFileLocator.ForClassLoader.ofSystemLoader();
 
+  private static final ClassValue<ClassAdviceTable> classAdviceTables = new ClassValue<ClassAdviceTable>() {
+    @Override
+    protected ClassAdviceTable computeValue(Class<?> type) {
+      return new ClassAdviceTable(type);
+    }
+  };
+
+  /**
+   * Invalidate caches depending on {@link #adviceRegistry} contents. Call this <i>after</i> changing the registry.
+   *
+   * @param target target for which advices have been added or removed
+   */
+  static void adviceRegistryChanged(Object target) {
+    // Only class targets affect class advice tables and dynamically dispatched (static method, constructor) advices.
+    // Do not invalidate call sites for instance targets, it would deoptimise all of them JVM-wide.
+    if (target instanceof Class) {
+      classAdviceTables.get((Class<?>) target).invalidate();
+      DynamicDispatch.invalidate();
+    }
+  }
+
+  /**
+   * Find the first advice of the given type registered for a target and matching a woven method. Keep this method
+   * allocation-free and do not call any target methods, because it is called from advice code woven into other
+   * classes.
+   *
+   * @param target     target to find advice for
+   * @param adviceType advice type to find advice for
+   * @param methodId   ID of the woven method or constructor, see {@link MethodIdRegistry}
+   * @return around advice if found, {@code null} otherwise
+   */
+  protected static AroundAdvice<?> findAdvice(Object target, AdviceType adviceType, int methodId) {
+    List<Weaver.Builder.AdviceDescription> adviceDescriptions = adviceRegistry.getValues(target);
+    // Do not use an iterator, it would cause an allocation
+    for (int i = 0; i < adviceDescriptions.size(); i++) {
+      Weaver.Builder.AdviceDescription adviceDescription = adviceDescriptions.get(i);
+      if (adviceDescription.adviceType == adviceType && adviceDescription.matches(methodId))
+        return adviceDescription.advice;
+    }
+    return null;
+  }
+
+  /**
+   * Find the first advice of the given type registered for a target class and matching a woven method. In contrast to
+   * {@link #findAdvice(Object, AdviceType, int)}, this does not look up the registry but a per-class table of advices
+   * pre-filtered by advice type. Keep this method allocation-free, because it is called from advice code woven into
+   * other classes.
+   *
+   * @param targetClass target class to find advice for
+   * @param adviceType  advice type to find advice for
+   * @param methodId    ID of the woven method, constructor or type initialiser, see {@link MethodIdRegistry}
+   * @return around advice if found, {@code null} otherwise
+   */
+  protected static AroundAdvice<?> findClassAdvice(Class<?> targetClass, AdviceType adviceType, int methodId) {
+    Weaver.Builder.AdviceDescription[] adviceDescriptions = classAdviceTables.get(targetClass).get(adviceType);
+    for (Weaver.Builder.AdviceDescription adviceDescription : adviceDescriptions) {
+      if (adviceDescription.matches(methodId))
+        return adviceDescription.advice;
+    }
+    return null;
+  }
+
+  // Per-thread slots holding the target currently being looked up, one slot per advice type. The slots are allocated
+  // once per thread, so the hot path is allocation-free. Being thread-confined, they neither need synchronisation nor
+  // mix up concurrent lookups.
+  private static final ThreadLocal<Object[]> currentTargets =
+    ThreadLocal.withInitial(() -> new Object[AdviceType.values().length]);
+
+  /**
+   * Find an advice via {@link #findAdvice(Object, AdviceType, int)} for instance method advices or via
+   * {@link #findClassAdvice(Class, AdviceType, int)} for all other advice types, guarding against direct recursion,
+   * i.e. a lookup for the same target and advice type while that lookup is still in progress. Keep this method
+   * allocation-free, because it is called from advice code woven into other classes.
+   * <p>
+   * Because the advice registry is identity-based, lookups no longer call target methods like {@code hashCode}. But
+   * they still use JRE classes, e.g. {@link ClassValue} internals, which might be woven themselves and thus trigger
+   * another lookup before the first one is finished. In this case, the nested lookup finds no advice, i.e. the woven
+   * code simply proceeds to the original method.
+   *
+   * @param target     target to find advice for; must be a class for all advice types except instance method advice
+   * @param adviceType advice type to find advice for
+   * @param methodId   ID of the woven method, constructor or type initialiser, see {@link MethodIdRegistry}
+   * @return around advice if found, {@code null} otherwise
+   */
+  protected static AroundAdvice<?> findAdviceNonRecursive(Object target, AdviceType adviceType, int methodId) {
+    Object[] currentTargets = Aspect.currentTargets.get();
+    int slot = adviceType.ordinal();
+    Object previousTarget = currentTargets[slot];
+    if (previousTarget == target) {
+      // CAVEAT: Do not print 'target' here. It is actually best to not call *any* target methods while just trying to
+      // access and call an around advice.
+      System.out.println("Recursion detected - origin: " + new Throwable().getStackTrace()[2]);
+      return null;
+    }
+    currentTargets[slot] = target;
+    try {
+      return adviceType == AdviceType.INSTANCE_METHOD_ADVICE
+        ? findAdvice(target, adviceType, methodId)
+        : findClassAdvice((Class<?>) target, adviceType, methodId);
+    }
+    finally {
+      currentTargets[slot] = previousTarget;
+    }
+  }
+
+  /**
+   * @param dynamicDispatch whether woven code is to obtain advices via {@link DynamicDispatch}
+   * @return advice builder with bindings for Sarek-specific advice parameter annotations like {@link WovenClassId}
+   */
+  private static Advice.WithCustomMapping withCustomMappings(boolean dynamicDispatch) {
+    return Advice
+      .withCustomMapping()
+      .bind(WovenClassId.class, ClassActivityRegistry.CLASS_ID_MAPPING)
+      .bind(WovenMethodId.class, MethodIdRegistry.METHOD_ID_MAPPING)
+      .bind(DynamicDispatch.Enabled.class, dynamicDispatch)
+      .bind(new DynamicDispatch.DispatchedAdviceFactory(dynamicDispatch));
+  }
+
+  /**
+   * @param enterAspect      aspect class containing the enter advice
+   * @param dynamicDispatch  whether the aspect supports {@link DynamicDispatch}
+   * @param intExitAspect    aspect class containing the exit advice for methods returning {@code int}
+   * @param longExitAspect   aspect class containing the exit advice for methods returning {@code long}
+   * @param doubleExitAspect aspect class containing the exit advice for methods returning {@code double}
+   * @return aspect templates by return type
+   */
+  private static Map<Class<?>, AspectTemplate> returnTypeTemplates(
+    Class<?> enterAspect, boolean dynamicDispatch,
+    Class<?> intExitAspect, Class<?> longExitAspect, Class<?> doubleExitAspect
+  )
+  {
+    Map<Class<?>, AspectTemplate> templates = new LinkedHashMap<>();
+    templates.put(int.class, new AspectTemplate(enterAspect, intExitAspect, dynamicDispatch));
+    templates.put(long.class, new AspectTemplate(enterAspect, longExitAspect, dynamicDispatch));
+    templates.put(double.class, new AspectTemplate(enterAspect, doubleExitAspect, dynamicDispatch));
+    return Collections.unmodifiableMap(templates);
+  }
+
+  /**
+   * Advice combining the enter advice of one aspect class with the exit advice of another (or the same) one,
+   * optionally with a {@link DynamicDispatch} variant
+   */
+  private static class AspectTemplate {
+    private final Advice advice;
+    private final Advice dynamicDispatchAdvice;
+
+    private AspectTemplate(Class<?> enterAspect, Class<?> exitAspect, boolean dynamicDispatch) {
+      advice = withCustomMappings(false).to(enterAspect, exitAspect, CLASS_FILE_LOCATOR);
+      dynamicDispatchAdvice = dynamicDispatch
+        ? withCustomMappings(true).to(enterAspect, exitAspect, CLASS_FILE_LOCATOR)
+        : null;
+    }
+
+    private AsmVisitorWrapper.ForDeclaredMethods.MethodVisitorWrapper wrapper(boolean dynamicDispatch) {
+      return dynamicDispatch && dynamicDispatchAdvice != null
+        ? DynamicDispatch.wrapper(advice, dynamicDispatchAdvice)
+        : advice;
+    }
+  }
+
+  /**
+   * Advices registered for a class target, grouped by advice type. There is exactly one table per class (see
+   * {@link #classAdviceTables}), which is rebuilt lazily from {@link #adviceRegistry} after being invalidated.
+   * <p>
+   * Rebuilding and invalidation are synchronised, so a rebuild based on an outdated registry state can never overwrite
+   * a later invalidation. Lookups of valid tables are lock-free.
+   */
+  private static class ClassAdviceTable {
+    private static final AdviceType[] ADVICE_TYPES = AdviceType.values();
+
+    private final Class<?> targetClass;
+    private volatile Weaver.Builder.AdviceDescription[][] adviceDescriptions;
+
+    private ClassAdviceTable(Class<?> targetClass) {
+      this.targetClass = targetClass;
+    }
+
+    Weaver.Builder.AdviceDescription[] get(AdviceType adviceType) {
+      Weaver.Builder.AdviceDescription[][] adviceDescriptions = this.adviceDescriptions;
+      if (adviceDescriptions == null)
+        adviceDescriptions = rebuild();
+      return adviceDescriptions[adviceType.ordinal()];
+    }
+
+    synchronized void invalidate() {
+      adviceDescriptions = null;
+    }
+
+    private synchronized Weaver.Builder.AdviceDescription[][] rebuild() {
+      if (adviceDescriptions != null)
+        return adviceDescriptions;
+      // Do not use streams or collections here, because their classes might be woven, e.g. by constructor advices
+      List<Weaver.Builder.AdviceDescription> registeredAdviceDescriptions = adviceRegistry.getValues(targetClass);
+      Weaver.Builder.AdviceDescription[][] newAdviceDescriptions =
+        new Weaver.Builder.AdviceDescription[ADVICE_TYPES.length][];
+      for (AdviceType adviceType : ADVICE_TYPES) {
+        int count = 0;
+        for (int i = 0; i < registeredAdviceDescriptions.size(); i++) {
+          if (registeredAdviceDescriptions.get(i).adviceType == adviceType)
+            count++;
+        }
+        Weaver.Builder.AdviceDescription[] adviceDescriptionsForType = new Weaver.Builder.AdviceDescription[count];
+        count = 0;
+        for (int i = 0; i < registeredAdviceDescriptions.size(); i++) {
+          if (registeredAdviceDescriptions.get(i).adviceType == adviceType)
+            adviceDescriptionsForType[count++] = registeredAdviceDescriptions.get(i);
+        }
+        newAdviceDescriptions[adviceType.ordinal()] = adviceDescriptionsForType;
+      }
+      return adviceDescriptions = newAdviceDescriptions;
+    }
+  }
+
   /**
    * A concrete advice can be registered with different scopes, e.g. per class or for a specific object instance.
    * See the description of each defined enum constant for more details.
@@ -129,7 +346,13 @@ public abstract class Aspect<T> {
 
   public enum AdviceType {
     INSTANCE_METHOD_ADVICE(
-      Advice.to(InstanceMethodAspect.class, CLASS_FILE_LOCATOR),
+      new AspectTemplate(InstanceMethodAspect.class, InstanceMethodAspect.class, false),
+      returnTypeTemplates(
+        InstanceMethodAspect.class, false,
+        InstanceMethodAspect.IntReturning.class,
+        InstanceMethodAspect.LongReturning.class,
+        InstanceMethodAspect.DoubleReturning.class
+      ),
       isMethod().and(not(isStatic().or(isAbstract()))),
       Collections.unmodifiableList(
         Arrays.asList(SCOPE_GLOBAL, SCOPE_MODULE, SCOPE_PACKAGE, SCOPE_CLASS, SCOPE_METHOD, SCOPE_INSTANCE)
@@ -139,7 +362,13 @@ public abstract class Aspect<T> {
       )
     ),
     STATIC_METHOD_ADVICE(
-      Advice.to(StaticMethodAspect.class, CLASS_FILE_LOCATOR),
+      new AspectTemplate(StaticMethodAspect.class, StaticMethodAspect.class, true),
+      returnTypeTemplates(
+        StaticMethodAspect.class, true,
+        StaticMethodAspect.IntReturning.class,
+        StaticMethodAspect.LongReturning.class,
+        StaticMethodAspect.DoubleReturning.class
+      ),
       isMethod().and(isStatic()),
       Collections.unmodifiableList(
         Arrays.asList(SCOPE_GLOBAL, SCOPE_MODULE, SCOPE_PACKAGE, SCOPE_CLASS, SCOPE_METHOD)
@@ -147,7 +376,8 @@ public abstract class Aspect<T> {
       Collections.singletonList(TARGET_STATIC_METHOD)
     ),
     CONSTRUCTOR_ADVICE(
-      Advice.to(ConstructorAspect.class, CLASS_FILE_LOCATOR),
+      new AspectTemplate(ConstructorAspect.class, ConstructorAspect.class, true),
+      Collections.emptyMap(),
       isConstructor(),
       Collections.unmodifiableList(
         Arrays.asList(SCOPE_GLOBAL, SCOPE_MODULE, SCOPE_PACKAGE, SCOPE_CLASS, SCOPE_METHOD)
@@ -155,7 +385,8 @@ public abstract class Aspect<T> {
       Collections.singletonList(TARGET_CONSTRUCTOR)
     ),
     TYPE_INITIALISER_ADVICE(
-      Advice.to(TypeInitialiserAspect.class, CLASS_FILE_LOCATOR),
+      new AspectTemplate(TypeInitialiserAspect.class, TypeInitialiserAspect.class, false),
+      Collections.emptyMap(),
       isTypeInitializer(),
       Collections.unmodifiableList(
         Arrays.asList(SCOPE_GLOBAL, SCOPE_MODULE, SCOPE_PACKAGE, SCOPE_CLASS)
@@ -163,26 +394,55 @@ public abstract class Aspect<T> {
       Collections.singletonList(TARGET_TYPE_INITIALISER)
     );
 
-    private final Advice advice;
+    private final AspectTemplate template;
+    private final Map<Class<?>, AspectTemplate> returnTypeTemplates;
     private final ElementMatcher.Junction<MethodDescription> methodType;
     private final List<AdviceScope> allowedTargetScopes;
     private final List<AdviceTargetType> allowedTargetTypes;
 
     AdviceType(
-      Advice advice,
+      AspectTemplate template,
+      Map<Class<?>, AspectTemplate> returnTypeTemplates,
       ElementMatcher.Junction<MethodDescription> methodType,
       List<AdviceScope> allowedTargetScopes,
       List<AdviceTargetType> allowedTargetTypes
     )
     {
-      this.advice = advice;
+      this.template = template;
+      this.returnTypeTemplates = returnTypeTemplates;
       this.methodType = methodType;
       this.allowedTargetScopes = allowedTargetScopes;
       this.allowedTargetTypes = allowedTargetTypes;
     }
 
     public Advice getAdvice() {
-      return advice;
+      return template.advice;
+    }
+
+    /**
+     * Apply this advice type to matching methods. Methods with a return type for which there is a specialised aspect
+     * template, e.g. {@code int}, get the specialised exit advice, all others the generic one.
+     * <p>
+     * Each method is matched against the given method matcher at most once, because matchers used by {@link Weaver}
+     * have side effects.
+     *
+     * @param methodMatcher   matcher for methods to be advised
+     * @param dynamicDispatch use {@link DynamicDispatch} if supported by this advice type, registry lookup otherwise
+     * @return ASM visitor wrapper applying this advice type to matching methods
+     */
+    public AsmVisitorWrapper on(ElementMatcher<? super MethodDescription> methodMatcher, boolean dynamicDispatch) {
+      AsmVisitorWrapper.ForDeclaredMethods visitorWrapper = new AsmVisitorWrapper.ForDeclaredMethods();
+      ElementMatcher.Junction<MethodDescription> genericMethods = any();
+      for (Map.Entry<Class<?>, AspectTemplate> returnTypeTemplate : returnTypeTemplates.entrySet()) {
+        // Check return type first, so 'methodMatcher' is only evaluated for the one template it belongs to
+        ElementMatcher.Junction<MethodDescription> returnType = returns(returnTypeTemplate.getKey());
+        visitorWrapper = visitorWrapper.invokable(
+          returnType.and(methodMatcher),
+          returnTypeTemplate.getValue().wrapper(dynamicDispatch)
+        );
+        genericMethods = genericMethods.and(not(returnType));
+      }
+      return visitorWrapper.invokable(genericMethods.and(methodMatcher), template.wrapper(dynamicDispatch));
     }
 
     public ElementMatcher.Junction<MethodDescription> getMethodType() {
@@ -0,0 +1,76 @@
+package dev.sarek.agent.aspect;
+
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.implementation.bytecode.constant.IntegerConstant;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps track of whether any {@link Weaver} which has woven a certain class currently has registered targets. Woven
+ * advice code checks this flag first, so that methods of dormant woven classes (i.e. no targets registered for any of
+ * the weavers having woven them) only cost one field read and a branch instead of an advice registry lookup.
+ * <p>
+ * Each woven class is assigned a dense {@code int} ID at weaving time, which is baked into the advice code via
+ * {@link WovenClassId}. IDs are assigned per class name, i.e. equally named classes from different class loaders share
+ * an ID. This is conservative: In the worst case such a class takes the slow path even though it is dormant.
+ * <p>
+ * The activity flags are published copy-on-write, i.e. reading them is lock-free while writing is synchronised.
+ */
+public class ClassActivityRegistry {
+  /**
+   * Offset mapping resolving the {@link WovenClassId} of the instrumented type as an {@code int} constant
+   */
+  public static final Advice.OffsetMapping CLASS_ID_MAPPING =
+    (instrumentedType, instrumentedMethod, assigner, argumentHandler, sort) ->
+      new Advice.OffsetMapping.Target.ForStackManipulation(IntegerConstant.forValue(getId(instrumentedType)));
+
+  private static final Map<String, Integer> classIds = new HashMap<>();
+  private static int[] activeWeaverCounts = new int[64];
+  private static volatile boolean[] active = new boolean[64];
+
+  /**
+   * Keep this method public because it must be callable from advice code woven into other classes
+   *
+   * @param classId woven class ID
+   * @return true if at least one weaver having woven the class has registered targets, false otherwise
+   */
+  public static boolean isActive(int classId) {
+    return active[classId];
+  }
+
+  static synchronized int getId(TypeDescription typeDescription) {
+    Integer classId = classIds.get(typeDescription.getName());
+    if (classId == null) {
+      classId = classIds.size();
+      classIds.put(typeDescription.getName(), classId);
+      if (classId >= activeWeaverCounts.length) {
+        activeWeaverCounts = Arrays.copyOf(activeWeaverCounts, 2 * activeWeaverCounts.length);
+        active = Arrays.copyOf(active, activeWeaverCounts.length);
+      }
+    }
+    return classId;
+  }
+
+  static synchronized void activate(Collection<Integer> classIds) {
+    update(classIds, 1);
+  }
+
+  static synchronized void deactivate(Collection<Integer> classIds) {
+    update(classIds, -1);
+  }
+
+  private static void update(Collection<Integer> classIds, int delta) {
+    boolean[] newActive = active.clone();
+    for (int classId : classIds) {
+      activeWeaverCounts[classId] += delta;
+      assert activeWeaverCounts[classId] >= 0 : "negative active weaver count (should never happen)";
+      newActive[classId] = activeWeaverCounts[classId] > 0;
+    }
+    active = newActive;
+  }
+
+}
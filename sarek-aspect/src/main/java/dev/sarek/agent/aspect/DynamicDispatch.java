@@ -0,0 +1,211 @@
+package dev.sarek.agent.aspect;
+
+import net.bytebuddy.ClassFileVersion;
+import net.bytebuddy.asm.Advice.OffsetMapping;
+import net.bytebuddy.asm.AsmVisitorWrapper;
+import net.bytebuddy.description.annotation.AnnotationDescription;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.method.ParameterDescription;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.implementation.bytecode.constant.NullConstant;
+import net.bytebuddy.implementation.bytecode.member.MethodInvocation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.invoke.*;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Optional advice dispatch mode based on {@code invokedynamic}, see {@link Weaver.Builder#dynamicDispatch(boolean)}.
+ * <p>
+ * Instead of looking up the around advice in {@link Aspect#adviceRegistry} on each call, woven code obtains it from an
+ * {@code invokedynamic} call site linked by {@link #bootstrap(MethodHandles.Lookup, String, MethodType, String, int)}.
+ * The call site's target is a constant method handle returning the currently registered advice, guarded by a
+ * {@link SwitchPoint}. Whenever a {@link Weaver} adds or removes class targets, the switch point is invalidated and
+ * each call site re-resolves its advice upon its next invocation. In between, the JIT compiler can treat the advice as a
+ * constant and inline it.
+ * <p>
+ * This works for static method and constructor advice, because those only depend on the woven method. Instance method
+ * advice also depends on the target instance, thus instance methods always use registry lookup.
+ * <p>
+ * Dynamic dispatch is only used for class files of version Java 7 or higher. Older class files cannot contain
+ * {@code invokedynamic} instructions, so for them woven code falls back to registry lookup.
+ * <p>
+ * <b>Caveat:</b> Do not use dynamic dispatch for JRE classes used by the method handle infrastructure itself,
+ * otherwise linking the call site might recursively call the woven code again.
+ */
+public class DynamicDispatch {
+  private static final MethodHandle RELINK;
+
+  static {
+    try {
+      RELINK = MethodHandles.lookup().findVirtual(AdviceCallSite.class, "relink", MethodType.methodType(Object.class));
+    }
+    catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private static volatile SwitchPoint switchPoint = new SwitchPoint();
+  private static volatile boolean linked;
+
+  /**
+   * Advice parameter annotation binding a {@code boolean} constant which is true if the woven code uses dynamic
+   * dispatch, i.e. a parameter annotated by {@link DispatchedAdvice} contains the around advice to be used
+   */
+  @Retention(RetentionPolicy.RUNTIME)
+  @Target(ElementType.PARAMETER)
+  public @interface Enabled { }
+
+  /**
+   * Advice parameter annotation binding the around advice obtained from an {@code invokedynamic} call site, if
+   * {@link Enabled} is true. Otherwise the parameter is always null.
+   */
+  @Retention(RetentionPolicy.RUNTIME)
+  @Target(ElementType.PARAMETER)
+  public @interface DispatchedAdvice { }
+
+  /**
+   * Bootstrap method for {@code invokedynamic} call sites created for parameters annotated by
+   * {@link DispatchedAdvice}.
+   * <p>
+   * Keep this method public because it must be callable from code woven into other classes
+   *
+   * @param lookup     lookup for woven class
+   * @param name       call site name (ignored)
+   * @param type       call site type, returning a type of {@link AroundAdvice}
+   * @param methodName internal name of woven method or constructor
+   * @param methodId   ID of woven method or constructor, see {@link MethodIdRegistry}
+   * @return call site returning the around advice currently registered for the woven method or constructor
+   */
+  public static CallSite bootstrap(
+    MethodHandles.Lookup lookup, String name, MethodType type, String methodName, int methodId
+  )
+  {
+    linked = true;
+    return new AdviceCallSite(
+      type, lookup.lookupClass(), MethodDescription.CONSTRUCTOR_INTERNAL_NAME.equals(methodName), methodId
+    );
+  }
+
+  /**
+   * Make all linked call sites re-resolve their advices. Call this <i>after</i> changing {@link Aspect#adviceRegistry}.
+   */
+  static void invalidate() {
+    // Avoid deoptimisation cost if dynamic dispatch is not used at all
+    if (!linked)
+      return;
+    SwitchPoint oldSwitchPoint = switchPoint;
+    switchPoint = new SwitchPoint();
+    SwitchPoint.invalidateAll(new SwitchPoint[] { oldSwitchPoint });
+  }
+
+  /**
+   * Create a method visitor wrapper which uses the dynamic dispatch advice for class files supporting
+   * {@code invokedynamic} and the static advice for older ones
+   *
+   * @param staticAdvice  advice binding {@link Enabled} to false
+   * @param dynamicAdvice advice binding {@link Enabled} to true
+   * @return method visitor wrapper to be applied to woven methods
+   */
+  static AsmVisitorWrapper.ForDeclaredMethods.MethodVisitorWrapper wrapper(
+    net.bytebuddy.asm.Advice staticAdvice,
+    net.bytebuddy.asm.Advice dynamicAdvice
+  )
+  {
+    return (instrumentedType, instrumentedMethod, methodVisitor, implementationContext, typePool, writerFlags, readerFlags) ->
+      (implementationContext.getClassFileVersion().isAtLeast(ClassFileVersion.JAVA_V7) ? dynamicAdvice : staticAdvice)
+        .wrap(instrumentedType, instrumentedMethod, methodVisitor, implementationContext, typePool, writerFlags, readerFlags);
+  }
+
+  /**
+   * Factory for offset mappings binding {@link DispatchedAdvice} parameters either to an {@code invokedynamic}
+   * instruction or to null
+   */
+  static class DispatchedAdviceFactory implements OffsetMapping.Factory<DispatchedAdvice> {
+    private static final MethodDescription.InDefinedShape BOOTSTRAP;
+
+    static {
+      try {
+        BOOTSTRAP = new MethodDescription.ForLoadedMethod(
+          DynamicDispatch.class.getMethod(
+            "bootstrap", MethodHandles.Lookup.class, String.class, MethodType.class, String.class, int.class
+          )
+        );
+      }
+      catch (NoSuchMethodException e) {
+        throw new ExceptionInInitializerError(e);
+      }
+    }
+
+    private final boolean dynamic;
+
+    DispatchedAdviceFactory(boolean dynamic) {
+      this.dynamic = dynamic;
+    }
+
+    @Override
+    public Class<DispatchedAdvice> getAnnotationType() {
+      return DispatchedAdvice.class;
+    }
+
+    @Override
+    public OffsetMapping make(
+      ParameterDescription.InDefinedShape target,
+      AnnotationDescription.Loadable<DispatchedAdvice> annotation,
+      OffsetMapping.Factory.AdviceType adviceType
+    )
+    {
+      TypeDescription adviceClass = target.getType().asErasure();
+      return (instrumentedType, instrumentedMethod, assigner, argumentHandler, sort) ->
+        new OffsetMapping.Target.ForStackManipulation(
+          dynamic
+            ? MethodInvocation.invoke(BOOTSTRAP).dynamic(
+            "advice",
+            adviceClass,
+            Collections.emptyList(),
+            Arrays.asList(instrumentedMethod.getInternalName(), MethodIdRegistry.getId(instrumentedMethod))
+          )
+            : NullConstant.INSTANCE
+        );
+    }
+  }
+
+  /**
+   * Call site returning the around advice for a woven method or constructor as a constant, until the switch point
+   * guarding it is invalidated
+   */
+  private static class AdviceCallSite extends MutableCallSite {
+    private final Class<?> wovenClass;
+    private final boolean constructor;
+    private final int methodId;
+    private final MethodHandle fallback;
+
+    private AdviceCallSite(MethodType type, Class<?> wovenClass, boolean constructor, int methodId) {
+      super(type);
+      this.wovenClass = wovenClass;
+      this.constructor = constructor;
+      this.methodId = methodId;
+      fallback = RELINK.bindTo(this).asType(type);
+      setTarget(fallback);
+    }
+
+    // Called via method handle RELINK. Not private, so it is accessible via method handle lookup on Java 8.
+    @SuppressWarnings("unused")
+    Object relink() {
+      // Get switch point before resolving the advice, so a concurrent registry change always invalidates the result
+      SwitchPoint currentSwitchPoint = switchPoint;
+      Object advice = constructor
+        ? ConstructorAspect.getAroundAdvice(wovenClass, methodId)
+        : StaticMethodAspect.getAroundAdvice(wovenClass, methodId);
+      setTarget(
+        currentSwitchPoint.guardWithTest(MethodHandles.constant(type().returnType(), advice), fallback)
+      );
+      return advice;
+    }
+  }
+
+}
@@ -1,21 +1,23 @@
 package dev.sarek.agent.aspect;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Objects;
 
 public class GlobalInstance<T> {
-  private static final Map<Class<?>, GlobalInstance<?>> GLOBAL_INSTANCE_CACHE = new HashMap<>();
+  // Attached to the target class itself, i.e. the cache does not prevent target classes from being unloaded
+  private static final ClassValue<GlobalInstance<?>> GLOBAL_INSTANCE_CACHE = new ClassValue<GlobalInstance<?>>() {
+    @Override
+    protected GlobalInstance<?> computeValue(Class<?> type) {
+      return new GlobalInstance<>(type);
+    }
+  };
 
   private final Class<T> targetClass;
 
+  @SuppressWarnings("unchecked")
   public static <T> GlobalInstance<T> of(Class<T> targetClass) {
-    GlobalInstance<T> globalInstance = (GlobalInstance<T>) GLOBAL_INSTANCE_CACHE.get(targetClass);
-    if (globalInstance == null) {
-      globalInstance = new GlobalInstance<>(targetClass);
-      GLOBAL_INSTANCE_CACHE.put(targetClass, globalInstance);
-    }
-    return globalInstance;
+    if (targetClass == null)
+      throw new IllegalArgumentException("target class must not be null");
+    return (GlobalInstance<T>) GLOBAL_INSTANCE_CACHE.get(targetClass);
   }
 
   private GlobalInstance(Class<T> targetClass) {
@@ -1,11 +1,8 @@
 package dev.sarek.agent.aspect;
 
 import net.bytebuddy.asm.Advice.*;
-import net.bytebuddy.description.method.MethodDescription;
 
 import java.lang.reflect.Method;
-import java.util.Arrays;
-import java.util.Stack;
 
 import static net.bytebuddy.implementation.bytecode.assign.Assigner.Typing.DYNAMIC;
 
@@ -15,7 +12,6 @@ public abstract class InstanceMethodAspect extends Aspect<Method> {
   //       Idea: enable class to register Method objects as keys in adviceRegistry.
   //       This would allow to register multiple MethodAroundAdvices per instance and
   //       make a per-method mocking/stubbing scheme easy to implement.
-  // TODO: Try @Advice.Local for transferring additional state between before/after advices if necessary
   // TODO: Document that if a user wants to build a special type of aspect or mock which only applies to static methods,
   //       constructors or type initialisers, she simply can do one of the following:
   //         a) Register no advices for instance methods.
@@ -26,30 +22,44 @@ public abstract class InstanceMethodAspect extends Aspect<Method> {
   @OnMethodEnter(skipOn = OnDefaultValue.class)
   public static boolean before(
     @This(typing = DYNAMIC, optional = true) Object target,
-    @Origin Method method,
-    @AllArguments(readOnly = false, typing = DYNAMIC) Object[] args
+    @Origin Class<?> declaringClass,
+    @AllArguments(readOnly = false, typing = DYNAMIC) Object[] args,
+    @Local("advice") InstanceMethodAroundAdvice advice,
+    @Local("method") Method method,
+    @WovenClassId int classId,
+    @WovenMethodId int methodId
   )
   {
-    // Get advice for target object instance or target class
-    // TODO: use @Advice.Local in order to communicate advice to 'after' method instead of a 2nd lookup
-    InstanceMethodAroundAdvice advice = getAroundAdvice(target, method);
+    // Fast path: If no weaver having woven this class has registered targets, there is nothing to look up
+    if (!ClassActivityRegistry.isActive(classId))
+      return true;
+
+    // Get advice for target object instance or target class, passing it on to 'after' via @Local
+    advice = getAroundAdvice(target, methodId);
 
     // If no advice is registered, proceed to target method normally
     if (advice == null)
       return true;
 
-    // Copy 'args' array because ByteBuddy performs special bytecode manipulation on 'args'.
-    // See also https://github.com/raphw/byte-buddy/issues/850#issuecomment-621387855.
-    // The only way to make it back here for argument changes applied to the array in the delegate advice
-    // called by advice.before() is to pass it a copy and then re-assign that copy back to 'args'.
-    Object[] argsCopy = Arrays.copyOf(args, args.length);
+    // Get cached method instance instead of looking it up reflectively, passing it on to 'after' via @Local
+    method = MethodIdRegistry.getMethod(declaringClass, methodId);
+
+    // Skip pass-through before advice, so arguments need not be boxed
+    if (!advice.hasBefore())
+      return true;
+
+    // Materialise arguments array only now that an advice is going to run, so calls without advice neither box
+    // arguments nor allocate an array. ByteBuddy creates a new array on each read of 'args', i.e. 'arguments' is
+    // already a private copy which the delegate advice can modify. See also
+    // https://github.com/raphw/byte-buddy/issues/850#issuecomment-621387855.
+    Object[] arguments = args;
 
     // Check if user-defined advice wants to proceed (true) to target method or not (false)
-    boolean shouldProceed = advice.before(target, method, argsCopy);
+    boolean shouldProceed = advice.before(target, method, arguments);
 
-    // Assign back copied arguments array to 'args' because this assignment is how ByteBuddy recognises
+    // Assign back arguments array to 'args' because this assignment is how ByteBuddy recognises
     // that the user wants to pass on parameter changes.
-    args = argsCopy;
+    args = arguments;
 
     return shouldProceed;
   }
@@ -58,17 +68,15 @@ public abstract class InstanceMethodAspect extends Aspect<Method> {
   @OnMethodExit(onThrowable = Throwable.class, backupArguments = false)
   public static void after(
     @This(typing = DYNAMIC, optional = true) Object target,
-    @Origin Method method,
+    @Local("method") Method method,
     @AllArguments(readOnly = false, typing = DYNAMIC) Object[] args,
     @Enter boolean proceedMode,
     @Return(readOnly = false, typing = DYNAMIC) Object returnValue,
     @StubValue Object stubReturnValue,
-    @Thrown(readOnly = false, typing = DYNAMIC) Throwable throwable
+    @Thrown(readOnly = false, typing = DYNAMIC) Throwable throwable,
+    @Local("advice") InstanceMethodAroundAdvice advice
   )
   {
-    // Get advice for target object instance or target class
-    InstanceMethodAroundAdvice advice = getAroundAdvice(target, method);
-
     // If no advice is registered, just pass through result
     if (advice == null)
       return;
@@ -87,58 +95,139 @@ public abstract class InstanceMethodAspect extends Aspect<Method> {
     }
   }
 
+  /**
+   * Exit advice template for instance methods returning {@code int}, to be combined with the enter advice of the
+   * enclosing class. Calls {@link InstanceMethodAroundAdvice#afterInt} if available, avoiding boxing.
+   */
+  public static abstract class IntReturning {
+    @SuppressWarnings("UnusedAssignment")
+    @OnMethodExit(onThrowable = Throwable.class, backupArguments = false)
+    public static void after(
+      @This(typing = DYNAMIC, optional = true) Object target,
+      @Local("method") Method method,
+      @AllArguments(readOnly = false, typing = DYNAMIC) Object[] args,
+      @Enter boolean proceedMode,
+      @Return(readOnly = false) int returnValue,
+      @Thrown(readOnly = false, typing = DYNAMIC) Throwable throwable,
+      @Local("advice") InstanceMethodAroundAdvice advice
+    )
+    {
+      // If no advice is registered, just pass through result
+      if (advice == null)
+        return;
+
+      // If target method was not executed, initialise return value with default value
+      if (!proceedMode)
+        returnValue = 0;
+
+      try {
+        // Only read 'args' if falling back to the generic after advice, because reading it boxes the arguments
+        returnValue = advice.hasIntAfter()
+          ? advice.afterInt(target, method, proceedMode, returnValue, throwable)
+          : (Integer) advice.after(target, method, args, proceedMode, returnValue, throwable);
+        throwable = null;
+      }
+      catch (Throwable e) {
+        throwable = e;
+        returnValue = 0;
+      }
+    }
+  }
+
+  /**
+   * Exit advice template for instance methods returning {@code long}, to be combined with the enter advice of the
+   * enclosing class. Calls {@link InstanceMethodAroundAdvice#afterLong} if available, avoiding boxing.
+   */
+  public static abstract class LongReturning {
+    @SuppressWarnings("UnusedAssignment")
+    @OnMethodExit(onThrowable = Throwable.class, backupArguments = false)
+    public static void after(
+      @This(typing = DYNAMIC, optional = true) Object target,
+      @Local("method") Method method,
+      @AllArguments(readOnly = false, typing = DYNAMIC) Object[] args,
+      @Enter boolean proceedMode,
+      @Return(readOnly = false) long returnValue,
+      @Thrown(readOnly = false, typing = DYNAMIC) Throwable throwable,
+      @Local("advice") InstanceMethodAroundAdvice advice
+    )
+    {
+      // If no advice is registered, just pass through result
+      if (advice == null)
+        return;
+
+      // If target method was not executed, initialise return value with default value
+      if (!proceedMode)
+        returnValue = 0;
+
+      try {
+        // Only read 'args' if falling back to the generic after advice, because reading it boxes the arguments
+        returnValue = advice.hasLongAfter()
+          ? advice.afterLong(target, method, proceedMode, returnValue, throwable)
+          : (Long) advice.after(target, method, args, proceedMode, returnValue, throwable);
+        throwable = null;
+      }
+      catch (Throwable e) {
+        throwable = e;
+        returnValue = 0;
+      }
+    }
+  }
+
+  /**
+   * Exit advice template for instance methods returning {@code double}, to be combined with the enter advice of the
+   * enclosing class. Calls {@link InstanceMethodAroundAdvice#afterDouble} if available, avoiding boxing.
+   */
+  public static abstract class DoubleReturning {
+    @SuppressWarnings("UnusedAssignment")
+    @OnMethodExit(onThrowable = Throwable.class, backupArguments = false)
+    public static void after(
+      @This(typing = DYNAMIC, optional = true) Object target,
+      @Local("method") Method method,
+      @AllArguments(readOnly = false, typing = DYNAMIC) Object[] args,
+      @Enter boolean proceedMode,
+      @Return(readOnly = false) double returnValue,
+      @Thrown(readOnly = false, typing = DYNAMIC) Throwable throwable,
+      @Local("advice") InstanceMethodAroundAdvice advice
+    )
+    {
+      // If no advice is registered, just pass through result
+      if (advice == null)
+        return;
+
+      // If target method was not executed, initialise return value with default value
+      if (!proceedMode)
+        returnValue = 0;
+
+      try {
+        // Only read 'args' if falling back to the generic after advice, because reading it boxes the arguments
+        returnValue = advice.hasDoubleAfter()
+          ? advice.afterDouble(target, method, proceedMode, returnValue, throwable)
+          : (Double) advice.after(target, method, args, proceedMode, returnValue, throwable);
+        throwable = null;
+      }
+      catch (Throwable e) {
+        throwable = e;
+        returnValue = 0;
+      }
+    }
+  }
+
   /**
    * Keep this method public because it must be callable from advice code woven into other classes
    *
-   * @param target target object to find advice for
-   * @param method instance method to find advice for
+   * @param target   target object to find advice for
+   * @param methodId ID of instance method to find advice for, see {@link MethodIdRegistry}
    * @return instance method around advice if found, {@code null} otherwise
    */
-  public static synchronized InstanceMethodAroundAdvice getAroundAdvice(Object target, Method method) {
-    InstanceMethodAroundAdvice advice = null;
-    advice = doGetAdvice(target, method);
+  public static InstanceMethodAroundAdvice getAroundAdvice(Object target, int methodId) {
+    InstanceMethodAroundAdvice advice =
+      (InstanceMethodAroundAdvice) findAdviceNonRecursive(target, AdviceType.INSTANCE_METHOD_ADVICE, methodId);
     // No instance advice? -> search for global instance advice based on target class
     if (advice == null)
-//      advice = doGetAdvice(GlobalInstance.of(method.getDeclaringClass()), method, false);
-      advice = doGetAdvice(GlobalInstance.of(target.getClass()), method);
+      advice = (InstanceMethodAroundAdvice) findAdviceNonRecursive(
+        GlobalInstance.of(target.getClass()), AdviceType.INSTANCE_METHOD_ADVICE, methodId
+      );
     return advice;
   }
 
-  // TODO: Check if the whole recursion detection code can be removed after the advice registry is now based on object
-  //       identity rather than object equality.
-  // TODO: Alternatively, make recursion detection thread-safe, maybe use ThreadLocal<Stack<Object>>.
-  private final static Stack<Object> targets = new Stack<>();
-
-  private static InstanceMethodAroundAdvice doGetAdvice(Object target, Method method) {
-    // Detect endless (direct) recursion leading to stack overflow, such as (schematically simplified):
-    // getAroundAdvice(target) → adviceRegistry.get(target) → target.hashCode() → getAroundAdvice(target)
-    if (!targets.empty() && targets.peek() == target) {
-      // CAVEAT: Do not print 'target' here, it would lead to another endless recursion via:
-      // target.toString() -> getAroundAdvice(target) → adviceRegistry.get(target) → target.toString()
-      // This recursion would get detected but still run away because after detection it would be printed again etc.
-      // It is actually best to not call *any* target methods while just trying to access and call an around advice.
-      System.out.println("Recursion detected - origin: " + new Throwable().getStackTrace()[2]);
-      //new Exception().printStackTrace();
-      return null;
-    }
-    targets.push(target);
-    try {
-      Weaver.Builder.AdviceDescription adviceDescription = adviceRegistry
-        .getValues(target)
-        .stream()
-        .filter(adviceDescr ->
-          adviceDescr.adviceType.equals(AdviceType.INSTANCE_METHOD_ADVICE)
-            && adviceDescr.methodMatcher.matches(new MethodDescription.ForLoadedMethod(method))
-        )
-        .findFirst()
-        .orElse(null);
-      return adviceDescription == null
-        ? null
-        : (InstanceMethodAroundAdvice) adviceDescription.advice;
-    }
-    finally {
-      targets.pop();
-    }
-  }
-
 }
@@ -0,0 +1,176 @@
+package dev.sarek.agent.aspect;
+
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.implementation.bytecode.constant.IntegerConstant;
+
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Executable;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns dense {@code int} IDs to woven methods and constructors at weaving time. The IDs are baked into the advice
+ * code via {@link WovenMethodId}, so that at runtime finding out whether an advice applies to a method is an array
+ * lookup (see {@link Weaver.Builder.AdviceDescription#matches(int)}) instead of a method matcher evaluation.
+ * <p>
+ * IDs are assigned per structural key, i.e. declaring type name, method name and descriptor. Thus, equally named
+ * classes from different class loaders share method IDs.
+ * <p>
+ * Furthermore, this registry provides cached reflective {@link Method} and {@link Constructor} instances per method
+ * ID, so woven code does not need to perform reflective lookups like {@code Class.getDeclaredMethod} on each call.
+ * The cache is attached to the declaring class via {@link ClassValue}, i.e. it does not prevent classes from being
+ * unloaded.
+ */
+public class MethodIdRegistry {
+  /**
+   * Offset mapping resolving the {@link WovenMethodId} of the instrumented method as an {@code int} constant
+   */
+  public static final Advice.OffsetMapping METHOD_ID_MAPPING =
+    (instrumentedType, instrumentedMethod, assigner, argumentHandler, sort) ->
+      new Advice.OffsetMapping.Target.ForStackManipulation(IntegerConstant.forValue(getId(instrumentedMethod)));
+
+  // Written while holding the lock on 'MethodIdRegistry.class', so IDs are assigned densely
+  private static final Map<String, Integer> methodIds = new ConcurrentHashMap<>();
+  // Guarded by 'MethodIdRegistry.class'
+  private static final List<String> methodNames = new ArrayList<>();
+  private static final List<String> methodDescriptors = new ArrayList<>();
+
+  private static final ClassValue<WovenMembers> wovenMembers = new ClassValue<WovenMembers>() {
+    @Override
+    protected WovenMembers computeValue(Class<?> type) {
+      return new WovenMembers();
+    }
+  };
+
+  /**
+   * @param methodDescription method or constructor
+   * @return the method ID, assigned upon first request for the method's structural key
+   */
+  public static int getId(MethodDescription methodDescription) {
+    String key = getKey(methodDescription);
+    // Lock-free for known methods, e.g. when weaving the same class in several class loaders or by several weavers
+    Integer methodId = methodIds.get(key);
+    return methodId != null ? methodId : assignId(key, methodDescription);
+  }
+
+  /**
+   * @param methodDescription method or constructor
+   * @return the method ID if already assigned, -1 otherwise
+   */
+  static int findId(MethodDescription methodDescription) {
+    return methodIds.getOrDefault(getKey(methodDescription), -1);
+  }
+
+  private static String getKey(MethodDescription methodDescription) {
+    return methodDescription.getDeclaringType().asErasure().getName()
+      + '.' + methodDescription.getInternalName()
+      + methodDescription.getDescriptor();
+  }
+
+  private static synchronized int assignId(String key, MethodDescription methodDescription) {
+    // Another thread might have assigned the ID in the meantime
+    Integer methodId = methodIds.get(key);
+    if (methodId == null) {
+      methodId = methodIds.size();
+      methodNames.add(methodDescription.getInternalName());
+      methodDescriptors.add(methodDescription.getDescriptor());
+      methodIds.put(key, methodId);
+    }
+    return methodId;
+  }
+
+  /**
+   * Keep this method public because it must be callable from advice code woven into other classes
+   *
+   * @param declaringClass class declaring the woven method
+   * @param methodId       woven method ID
+   * @return cached method instance
+   */
+  public static Method getMethod(Class<?> declaringClass, int methodId) {
+    return (Method) wovenMembers.get(declaringClass).get(declaringClass, methodId);
+  }
+
+  /**
+   * Keep this method public because it must be callable from advice code woven into other classes
+   *
+   * @param declaringClass class declaring the woven constructor
+   * @param methodId       woven constructor ID
+   * @return cached constructor instance
+   */
+  public static Constructor<?> getConstructor(Class<?> declaringClass, int methodId) {
+    return (Constructor<?>) wovenMembers.get(declaringClass).get(declaringClass, methodId);
+  }
+
+  private static Executable resolve(Class<?> declaringClass, int methodId) {
+    String methodName;
+    String methodDescriptor;
+    synchronized (MethodIdRegistry.class) {
+      methodName = methodNames.get(methodId);
+      methodDescriptor = methodDescriptors.get(methodId);
+    }
+    MethodType methodType = MethodType.fromMethodDescriptorString(methodDescriptor, declaringClass.getClassLoader());
+    if (MethodDescription.CONSTRUCTOR_INTERNAL_NAME.equals(methodName)) {
+      for (Constructor<?> constructor : declaringClass.getDeclaredConstructors()) {
+        if (Arrays.equals(constructor.getParameterTypes(), methodType.parameterArray()))
+          return constructor;
+      }
+    }
+    else {
+      // Do not use 'getDeclaredMethod' because it does not consider return types, e.g. for bridge methods
+      for (Method method : declaringClass.getDeclaredMethods()) {
+        if (
+          method.getName().equals(methodName)
+            && method.getReturnType() == methodType.returnType()
+            && Arrays.equals(method.getParameterTypes(), methodType.parameterArray())
+        )
+          return method;
+      }
+    }
+    throw new IllegalStateException(
+      "woven method not found: " + declaringClass.getName() + "." + methodName + methodDescriptor
+    );
+  }
+
+  /**
+   * Reflective members of a single woven class, looked up lazily by method ID. Woven classes usually have few woven
+   * methods, so a linear search in a copy-on-write array is good enough.
+   */
+  private static class WovenMembers {
+    private volatile WovenMember[] members = new WovenMember[0];
+
+    Executable get(Class<?> declaringClass, int methodId) {
+      for (WovenMember member : members) {
+        if (member.methodId == methodId)
+          return member.member;
+      }
+      return add(declaringClass, methodId);
+    }
+
+    private synchronized Executable add(Class<?> declaringClass, int methodId) {
+      // Another thread might have added the member in the meantime
+      for (WovenMember member : members) {
+        if (member.methodId == methodId)
+          return member.member;
+      }
+      Executable member = resolve(declaringClass, methodId);
+      WovenMember[] newMembers = Arrays.copyOf(members, members.length + 1);
+      newMembers[members.length] = new WovenMember(methodId, member);
+      members = newMembers;
+      return member;
+    }
+  }
+
+  private static class WovenMember {
+    private final int methodId;
+    private final Executable member;
+
+    private WovenMember(int methodId, Executable member) {
+      this.methodId = methodId;
+      this.member = member;
+    }
+  }
+
+}
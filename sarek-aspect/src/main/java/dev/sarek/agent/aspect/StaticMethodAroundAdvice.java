@@ -5,6 +5,9 @@ import java.lang.reflect.Method;
 public class StaticMethodAroundAdvice extends AroundAdvice<Method> {
   private final Before before;
   private final After after;
+  private final IntAfter intAfter;
+  private final LongAfter longAfter;
+  private final DoubleAfter doubleAfter;
 
   public static final Before BEFORE_DEFAULT = (method, args) -> true;
 
@@ -14,6 +17,24 @@ public class StaticMethodAroundAdvice extends AroundAdvice<Method> {
     return returnValue;
   };
 
+  public static final IntAfter INT_AFTER_DEFAULT = (method, proceedMode, returnValue, throwable) -> {
+    if (throwable != null)
+      throw throwable;
+    return returnValue;
+  };
+
+  public static final LongAfter LONG_AFTER_DEFAULT = (method, proceedMode, returnValue, throwable) -> {
+    if (throwable != null)
+      throw throwable;
+    return returnValue;
+  };
+
+  public static final DoubleAfter DOUBLE_AFTER_DEFAULT = (method, proceedMode, returnValue, throwable) -> {
+    if (throwable != null)
+      throw throwable;
+    return returnValue;
+  };
+
   public static final StaticMethodAroundAdvice MOCK = new StaticMethodAroundAdvice(
     // Skip target method (do not proceed)
     (method, args) -> false,
@@ -21,9 +42,74 @@ public class StaticMethodAroundAdvice extends AroundAdvice<Method> {
     (method, args, proceedMode, returnValue, throwable) -> returnValue
   );
 
+  /**
+   * Create an around advice. In order to avoid boxing for methods returning {@code int}, {@code long} or
+   * {@code double}, add specialised after advices via {@link #withIntAfter(IntAfter)},
+   * {@link #withLongAfter(LongAfter)} or {@link #withDoubleAfter(DoubleAfter)}. For such methods, the specialised after
+   * advice is called instead of <i>after</i>, so neither the return value nor the method arguments need to be boxed. If
+   * there is no specialised after advice for a return type, <i>after</i> is called instead, unless <i>after</i> is null
+   * too, i.e. the advice just passes through results. Example:
+   * <pre>
+   * new StaticMethodAroundAdvice(before, after)
+   *   .withIntAfter((method, proceedMode, returnValue, throwable) -&gt; returnValue + 1)
+   * </pre>
+   *
+   * @param before before advice; null means to always proceed to the intercepted method
+   * @param after  after advice; null means to pass through results
+   */
   public StaticMethodAroundAdvice(Before before, After after) {
+    this(before, after, null, null, null);
+  }
+
+  private StaticMethodAroundAdvice(
+    Before before, After after, IntAfter intAfter, LongAfter longAfter, DoubleAfter doubleAfter
+  )
+  {
     this.before = before == null ? BEFORE_DEFAULT : before;
     this.after = after == null ? AFTER_DEFAULT : after;
+    this.intAfter = intAfter == null && after == null ? INT_AFTER_DEFAULT : intAfter;
+    this.longAfter = longAfter == null && after == null ? LONG_AFTER_DEFAULT : longAfter;
+    this.doubleAfter = doubleAfter == null && after == null ? DOUBLE_AFTER_DEFAULT : doubleAfter;
+  }
+
+  /**
+   * @param intAfter after advice for methods returning {@code int}
+   * @return copy of this advice using <i>intAfter</i> instead of the generic after advice for methods returning
+   * {@code int}
+   */
+  public StaticMethodAroundAdvice withIntAfter(IntAfter intAfter) {
+    return new StaticMethodAroundAdvice(before, genericAfter(), intAfter, longAfter, doubleAfter);
+  }
+
+  /**
+   * @param longAfter after advice for methods returning {@code long}
+   * @return copy of this advice using <i>longAfter</i> instead of the generic after advice for methods returning
+   * {@code long}
+   */
+  public StaticMethodAroundAdvice withLongAfter(LongAfter longAfter) {
+    return new StaticMethodAroundAdvice(before, genericAfter(), intAfter, longAfter, doubleAfter);
+  }
+
+  /**
+   * @param doubleAfter after advice for methods returning {@code double}
+   * @return copy of this advice using <i>doubleAfter</i> instead of the generic after advice for methods returning
+   * {@code double}
+   */
+  public StaticMethodAroundAdvice withDoubleAfter(DoubleAfter doubleAfter) {
+    return new StaticMethodAroundAdvice(before, genericAfter(), intAfter, longAfter, doubleAfter);
+  }
+
+  // Null if results are just passed through, so specialised after advices also default to passing through results
+  private After genericAfter() {
+    return after == AFTER_DEFAULT ? null : after;
+  }
+
+  /**
+   * @return false if the before advice always proceeds to the intercepted method without changing arguments, i.e.
+   * woven code can skip calling it
+   */
+  public boolean hasBefore() {
+    return before != BEFORE_DEFAULT;
   }
 
   public boolean before(Method method, Object[] args) {
@@ -38,6 +124,39 @@ public class StaticMethodAroundAdvice extends AroundAdvice<Method> {
     return after.apply(method, args, proceedMode, returnValue, throwable);
   }
 
+  public boolean hasIntAfter() {
+    return intAfter != null;
+  }
+
+  public int afterInt(
+    Method method, boolean proceedMode, int returnValue, Throwable throwable
+  ) throws Throwable
+  {
+    return intAfter.apply(method, proceedMode, returnValue, throwable);
+  }
+
+  public boolean hasLongAfter() {
+    return longAfter != null;
+  }
+
+  public long afterLong(
+    Method method, boolean proceedMode, long returnValue, Throwable throwable
+  ) throws Throwable
+  {
+    return longAfter.apply(method, proceedMode, returnValue, throwable);
+  }
+
+  public boolean hasDoubleAfter() {
+    return doubleAfter != null;
+  }
+
+  public double afterDouble(
+    Method method, boolean proceedMode, double returnValue, Throwable throwable
+  ) throws Throwable
+  {
+    return doubleAfter.apply(method, proceedMode, returnValue, throwable);
+  }
+
   public interface Before {
     /**
      * @param method method to be executed
@@ -65,4 +184,58 @@ public class StaticMethodAroundAdvice extends AroundAdvice<Method> {
     )
       throws Throwable;
   }
+
+  /**
+   * After advice for methods returning {@code int}, avoiding boxing. In contrast to {@link After}, it does not
+   * receive the method arguments.
+   */
+  public interface IntAfter {
+    /**
+     * @param method      method which has just been executed
+     * @param proceedMode true if intercepted method was called, false if it was skipped because
+     *                    {@link Before#apply(Method, Object[])} returned false
+     * @param returnValue result of intercepted method, if it was called and there was no exception; 0 otherwise
+     * @param throwable   exception thrown by intercepted method, if any
+     * @return result which should be returned to the caller; change if you want to return a different result instead
+     * @throws Throwable Feel free to not throw any exception, to re-throw <i>throwable</i> or to throw any other
+     *                   checked exception type declared by the intercepted method or an unchecked exception
+     */
+    int apply(Method method, boolean proceedMode, int returnValue, Throwable throwable) throws Throwable;
+  }
+
+  /**
+   * After advice for methods returning {@code long}, avoiding boxing. In contrast to {@link After}, it does not
+   * receive the method arguments.
+   */
+  public interface LongAfter {
+    /**
+     * @param method      method which has just been executed
+     * @param proceedMode true if intercepted method was called, false if it was skipped because
+     *                    {@link Before#apply(Method, Object[])} returned false
+     * @param returnValue result of intercepted method, if it was called and there was no exception; 0 otherwise
+     * @param throwable   exception thrown by intercepted method, if any
+     * @return result which should be returned to the caller; change if you want to return a different result instead
+     * @throws Throwable Feel free to not throw any exception, to re-throw <i>throwable</i> or to throw any other
+     *                   checked exception type declared by the intercepted method or an unchecked exception
+     */
+    long apply(Method method, boolean proceedMode, long returnValue, Throwable throwable) throws Throwable;
+  }
+
+  /**
+   * After advice for methods returning {@code double}, avoiding boxing. In contrast to {@link After}, it does not
+   * receive the method arguments.
+   */
+  public interface DoubleAfter {
+    /**
+     * @param method      method which has just been executed
+     * @param proceedMode true if intercepted method was called, false if it was skipped because
+     *                    {@link Before#apply(Method, Object[])} returned false
+     * @param returnValue result of intercepted method, if it was called and there was no exception; 0 otherwise
+     * @param throwable   exception thrown by intercepted method, if any
+     * @return result which should be returned to the caller; change if you want to return a different result instead
+     * @throws Throwable Feel free to not throw any exception, to re-throw <i>throwable</i> or to throw any other
+     *                   checked exception type declared by the intercepted method or an unchecked exception
+     */
+    double apply(Method method, boolean proceedMode, double returnValue, Throwable throwable) throws Throwable;
+  }
 }
@@ -1,11 +1,8 @@
 package dev.sarek.agent.aspect;
 
 import net.bytebuddy.asm.Advice.*;
-import net.bytebuddy.description.method.MethodDescription;
 
 import java.lang.reflect.Method;
-import java.util.Arrays;
-import java.util.Stack;
 
 import static net.bytebuddy.implementation.bytecode.assign.Assigner.Typing.DYNAMIC;
 
@@ -15,35 +12,51 @@ public abstract class StaticMethodAspect extends Aspect<Method> {
   //       Idea: enable class to register Method objects as keys in adviceRegistry.
   //       This would allow to register multiple MethodAroundAdvices per instance and
   //       make a per-method mocking/stubbing scheme easy to implement.
-  // TODO: Try @Advice.Local for transferring additional state between before/after advices if necessary
 
   @SuppressWarnings("UnusedAssignment")
   @OnMethodEnter(skipOn = OnDefaultValue.class)
   public static boolean before(
-    @Origin Method method,
-    @AllArguments(readOnly = false, typing = DYNAMIC) Object[] args
+    @Local("method") Method method,
+    @AllArguments(readOnly = false, typing = DYNAMIC) Object[] args,
+    @Origin Class<?> targetClass,
+    @Local("advice") StaticMethodAroundAdvice advice,
+    @WovenClassId int classId,
+    @WovenMethodId int methodId,
+    @DynamicDispatch.Enabled boolean dynamicDispatch,
+    @DynamicDispatch.DispatchedAdvice StaticMethodAroundAdvice dispatchedAdvice
   )
   {
-    // Get advice for target object instance or target class
-    // TODO: use @Advice.Local in order to communicate advice to 'after' method instead of a 2nd lookup
-    StaticMethodAroundAdvice advice = getAroundAdvice(method);
+    // Fast path: If no weaver having woven this class has registered targets, there is nothing to look up
+    if (!ClassActivityRegistry.isActive(classId))
+      return true;
+
+    // Get advice for target class, passing it on to 'after' via @Local. With dynamic dispatch, an invokedynamic call
+    // site provides the advice, otherwise look it up in the advice registry.
+    advice = dynamicDispatch ? dispatchedAdvice : getAroundAdvice(targetClass, methodId);
 
     // If no advice is registered, proceed to target method normally
     if (advice == null)
       return true;
 
-    // Copy 'args' array because ByteBuddy performs special bytecode manipulation on 'args'.
-    // See also https://github.com/raphw/byte-buddy/issues/850#issuecomment-621387855.
-    // The only way to make it back here for argument changes applied to the array in the delegate advice
-    // called by advice.before() is to pass it a copy and then re-assign that copy back to 'args'.
-    Object[] argsCopy = Arrays.copyOf(args, args.length);
+    // Get cached method instance instead of looking it up reflectively, passing it on to 'after' via @Local
+    method = MethodIdRegistry.getMethod(targetClass, methodId);
+
+    // Skip pass-through before advice, so arguments need not be boxed
+    if (!advice.hasBefore())
+      return true;
+
+    // Materialise arguments array only now that an advice is going to run, so calls without advice neither box
+    // arguments nor allocate an array. ByteBuddy creates a new array on each read of 'args', i.e. 'arguments' is
+    // already a private copy which the delegate advice can modify. See also
+    // https://github.com/raphw/byte-buddy/issues/850#issuecomment-621387855.
+    Object[] arguments = args;
 
     // Check if user-defined advice wants to proceed (true) to target method or not (false)
-    boolean shouldProceed = advice.before(method, argsCopy);
+    boolean shouldProceed = advice.before(method, arguments);
 
-    // Assign back copied arguments array to 'args' because this assignment is how ByteBuddy recognises
+    // Assign back arguments array to 'args' because this assignment is how ByteBuddy recognises
     // that the user wants to pass on parameter changes.
-    args = argsCopy;
+    args = arguments;
 
     return shouldProceed;
   }
@@ -51,17 +64,15 @@ public abstract class StaticMethodAspect extends Aspect<Method> {
   @SuppressWarnings("UnusedAssignment")
   @OnMethodExit(onThrowable = Throwable.class, backupArguments = false)
   public static void after(
-    @Origin Method method,
+    @Local("method") Method method,
     @AllArguments(readOnly = false, typing = DYNAMIC) Object[] args,
     @Enter boolean proceedMode,
     @Return(readOnly = false, typing = DYNAMIC) Object returnValue,
     @StubValue Object stubReturnValue,
-    @Thrown(readOnly = false, typing = DYNAMIC) Throwable throwable
+    @Thrown(readOnly = false, typing = DYNAMIC) Throwable throwable,
+    @Local("advice") StaticMethodAroundAdvice advice
   )
   {
-    // Get advice for target object instance or target class
-    StaticMethodAroundAdvice advice = getAroundAdvice(method);
-
     // If no advice is registered, just pass through result
     if (advice == null)
       return;
@@ -81,47 +92,128 @@ public abstract class StaticMethodAspect extends Aspect<Method> {
   }
 
   /**
-   * Keep this method public because it must be callable from advice code woven into other classes
-   *
-   * @param method static method to find advice for
-   * @return static method around advice if found, {@code null} otherwise
+   * Exit advice template for static methods returning {@code int}, to be combined with the enter advice of the
+   * enclosing class. Calls {@link StaticMethodAroundAdvice#afterInt} if available, avoiding boxing.
    */
-  public static synchronized StaticMethodAroundAdvice getAroundAdvice(Method method) {
-    return doGetAdvice(method.getDeclaringClass(), method);
+  public static abstract class IntReturning {
+    @SuppressWarnings("UnusedAssignment")
+    @OnMethodExit(onThrowable = Throwable.class, backupArguments = false)
+    public static void after(
+      @Local("method") Method method,
+      @AllArguments(readOnly = false, typing = DYNAMIC) Object[] args,
+      @Enter boolean proceedMode,
+      @Return(readOnly = false) int returnValue,
+      @Thrown(readOnly = false, typing = DYNAMIC) Throwable throwable,
+      @Local("advice") StaticMethodAroundAdvice advice
+    )
+    {
+      // If no advice is registered, just pass through result
+      if (advice == null)
+        return;
+
+      // If target method was not executed, initialise return value with default value
+      if (!proceedMode)
+        returnValue = 0;
+
+      try {
+        // Only read 'args' if falling back to the generic after advice, because reading it boxes the arguments
+        returnValue = advice.hasIntAfter()
+          ? advice.afterInt(method, proceedMode, returnValue, throwable)
+          : (Integer) advice.after(method, args, proceedMode, returnValue, throwable);
+        throwable = null;
+      }
+      catch (Throwable e) {
+        throwable = e;
+        returnValue = 0;
+      }
+    }
   }
 
-  // TODO: Check if the whole recursion detection code can be removed after the advice registry is now based on object
-  //       identity rather than object equality.
-  // TODO: Alternatively, make recursion detection thread-safe, maybe use ThreadLocal<Stack<Object>>.
-  private final static Stack<Object> targets = new Stack<>();
-
-  private static StaticMethodAroundAdvice doGetAdvice(Object target, Method method) {
-    // Detect endless (direct) recursion leading to stack overflow, such as (schematically simplified):
-    // getAroundAdvice(target) → adviceRegistry.get(target) → target.hashCode() → getAroundAdvice(target)
-    if (!targets.empty() && targets.peek() == target) {
-      // CAVEAT: Do not print 'target' here, it would lead to another endless recursion via:
-      // target.toString() -> getAroundAdvice(target) → adviceRegistry.get(target) → target.toString()
-      // This recursion would get detected but still run away because after detection it would be printed again etc.
-      // It is actually best to not call *any* target methods while just trying to access and call an around advice.
-      System.out.println("Recursion detected - origin: " + new Throwable().getStackTrace()[2]);
-      return null;
-    }
-    targets.push(target);
-    try {
-      return adviceRegistry
-        .getValues(target)
-        .stream()
-        .filter(adviceDescription ->
-          adviceDescription.adviceType.equals(AdviceType.STATIC_METHOD_ADVICE)
-            && adviceDescription.methodMatcher.matches(new MethodDescription.ForLoadedMethod(method))
-        )
-        .map(adviceDescription -> (StaticMethodAroundAdvice) adviceDescription.advice)
-        .findFirst()
-        .orElse(null);
+  /**
+   * Exit advice template for static methods returning {@code long}, to be combined with the enter advice of the
+   * enclosing class. Calls {@link StaticMethodAroundAdvice#afterLong} if available, avoiding boxing.
+   */
+  public static abstract class LongReturning {
+    @SuppressWarnings("UnusedAssignment")
+    @OnMethodExit(onThrowable = Throwable.class, backupArguments = false)
+    public static void after(
+      @Local("method") Method method,
+      @AllArguments(readOnly = false, typing = DYNAMIC) Object[] args,
+      @Enter boolean proceedMode,
+      @Return(readOnly = false) long returnValue,
+      @Thrown(readOnly = false, typing = DYNAMIC) Throwable throwable,
+      @Local("advice") StaticMethodAroundAdvice advice
+    )
+    {
+      // If no advice is registered, just pass through result
+      if (advice == null)
+        return;
+
+      // If target method was not executed, initialise return value with default value
+      if (!proceedMode)
+        returnValue = 0;
+
+      try {
+        // Only read 'args' if falling back to the generic after advice, because reading it boxes the arguments
+        returnValue = advice.hasLongAfter()
+          ? advice.afterLong(method, proceedMode, returnValue, throwable)
+          : (Long) advice.after(method, args, proceedMode, returnValue, throwable);
+        throwable = null;
+      }
+      catch (Throwable e) {
+        throwable = e;
+        returnValue = 0;
+      }
     }
-    finally {
-      targets.pop();
+  }
+
+  /**
+   * Exit advice template for static methods returning {@code double}, to be combined with the enter advice of the
+   * enclosing class. Calls {@link StaticMethodAroundAdvice#afterDouble} if available, avoiding boxing.
+   */
+  public static abstract class DoubleReturning {
+    @SuppressWarnings("UnusedAssignment")
+    @OnMethodExit(onThrowable = Throwable.class, backupArguments = false)
+    public static void after(
+      @Local("method") Method method,
+      @AllArguments(readOnly = false, typing = DYNAMIC) Object[] args,
+      @Enter boolean proceedMode,
+      @Return(readOnly = false) double returnValue,
+      @Thrown(readOnly = false, typing = DYNAMIC) Throwable throwable,
+      @Local("advice") StaticMethodAroundAdvice advice
+    )
+    {
+      // If no advice is registered, just pass through result
+      if (advice == null)
+        return;
+
+      // If target method was not executed, initialise return value with default value
+      if (!proceedMode)
+        returnValue = 0;
+
+      try {
+        // Only read 'args' if falling back to the generic after advice, because reading it boxes the arguments
+        returnValue = advice.hasDoubleAfter()
+          ? advice.afterDouble(method, proceedMode, returnValue, throwable)
+          : (Double) advice.after(method, args, proceedMode, returnValue, throwable);
+        throwable = null;
+      }
+      catch (Throwable e) {
+        throwable = e;
+        returnValue = 0;
+      }
     }
   }
 
+  /**
+   * Keep this method public because it must be callable from advice code woven into other classes
+   *
+   * @param targetClass class declaring the static method to find advice for
+   * @param methodId    ID of static method to find advice for, see {@link MethodIdRegistry}
+   * @return static method around advice if found, {@code null} otherwise
+   */
+  public static StaticMethodAroundAdvice getAroundAdvice(Class<?> targetClass, int methodId) {
+    return (StaticMethodAroundAdvice) findAdviceNonRecursive(targetClass, AdviceType.STATIC_METHOD_ADVICE, methodId);
+  }
+
 }
@@ -0,0 +1,359 @@
+package dev.sarek.agent.aspect;
+
+import dev.sarek.agent.Agent;
+import dev.sarek.agent.WeavingTransaction;
+import dev.sarek.agent.util.CachingPoolStrategy;
+import dev.sarek.agent.util.WeakIdentityMap;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.matcher.ElementMatcher.Junction;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static net.bytebuddy.agent.builder.AgentBuilder.RedefinitionStrategy.RETRANSFORMATION;
+import static java.util.stream.Collectors.toList;
+import static net.bytebuddy.matcher.ElementMatchers.nameStartsWith;
+
+/**
+ * Single class file transformer shared by all {@link Weaver}s. Instead of installing one transformer per weaver, which
+ * would make each class load run through all weavers' type matchers and parse the class once per weaver, weavers
+ * register here. Each class is parsed once and only transformed by the weavers whose type matchers apply, passing the
+ * same builder through all of them.
+ * <p>
+ * Registering or unregistering a weaver retransforms the loaded classes matched by that weaver, i.e. other weavers'
+ * classes stay untouched. Because retransformations start from the original class files, each retransformed class is
+ * woven again by all weavers still matching it. Loaded classes are found by matching all classes loaded in the JVM,
+ * unless the weaver restricts them via {@link Weaver.Builder#discoverHierarchyOf(Class[])}. ByteBuddy and Sarek types
+ * are never woven.
+ * <p>
+ * The transformer is installed when the first weaver registers and removed when the last one unregisters.
+ * Retransformations are deferred while a {@link WeavingTransaction} is open.
+ * <p>
+ * Weavers using {@link Weaver.Builder#dormantWeaving(boolean) dormant weaving} stay registered when being unregistered
+ * by the user, i.e. their classes stay woven. Such dormant weavers can be adopted by new compatible weavers without
+ * retransforming anything. Dormant weavers are reset when the JVM shuts down at the latest.
+ * <p>
+ * For weavers using {@link Weaver.Builder#precomputeInParallel(boolean) parallel precomputation}, the transformed class
+ * files of a retransformation batch are computed in parallel before handing the batch to the JVM, see
+ * {@link PrecomputingTransformer}.
+ */
+class TransformerHub {
+  private static volatile Weaver[] weavers = new Weaver[0];
+  // Guarded by 'TransformerHub.class'
+  private static PrecomputingTransformer transformer;
+  // Registered weavers without targets, waiting to be adopted. Guarded by 'TransformerHub.class'.
+  private static final List<Weaver> dormantWeavers = new ArrayList<>();
+  // Guarded by 'TransformerHub.class'
+  private static boolean shutdownHookRegistered;
+  // Evaluating type matchers can load ByteBuddy or Sarek classes, e.g. when navigating type hierarchies. Never weave
+  // those, otherwise matching them could require the very class being loaded -> ClassCircularityError.
+  private static final Junction<TypeDescription> IGNORED_TYPES = nameStartsWith("net.bytebuddy.")
+    .or(nameStartsWith("dev.sarek."));
+  // Weavers found by the type matcher, handed over to the transformer for the same type description
+  private static final ThreadLocal<MatchingWeavers> matchingWeavers = new ThreadLocal<>();
+
+  /**
+   * Register a weaver and weave all loaded classes matched by it
+   *
+   * @param weaver weaver to be registered
+   */
+  static synchronized void register(Weaver weaver) {
+    Weaver[] newWeavers = Arrays.copyOf(weavers, weavers.length + 1);
+    newWeavers[weavers.length] = weaver;
+    weavers = newWeavers;
+    if (transformer == null) {
+      transformer = new PrecomputingTransformer(createAgentBuilder().makeRaw());
+      Agent.getInstrumentation().addTransformer(transformer, true);
+      WeavingTransaction.addListener(transformer);
+    }
+    retransform(weaver);
+  }
+
+  /**
+   * Unregister a weaver, optionally resetting all loaded classes matched by it, i.e. retransforming them without the
+   * weaver's advices
+   *
+   * @param weaver weaver to be unregistered
+   * @param reset  retransform classes matched by the weaver?
+   * @return true if the weaver was registered before, false otherwise
+   */
+  static synchronized boolean unregister(Weaver weaver, boolean reset) {
+    List<Weaver> newWeavers = new ArrayList<>(Arrays.asList(weavers));
+    if (!newWeavers.remove(weaver))
+      return false;
+    weavers = newWeavers.toArray(new Weaver[0]);
+    dormantWeavers.remove(weaver);
+    if (reset)
+      retransform(weaver);
+    if (weavers.length == 0) {
+      Agent.getInstrumentation().removeTransformer(transformer);
+      WeavingTransaction.removeListener(transformer);
+      transformer = null;
+    }
+    return true;
+  }
+
+  /**
+   * Keep a registered weaver and the classes woven by it, so a compatible weaver can adopt it later
+   *
+   * @param weaver registered weaver without targets
+   * @return true if the weaver is dormant now, false if it was not registered
+   */
+  static synchronized boolean makeDormant(Weaver weaver) {
+    if (!Arrays.asList(weavers).contains(weaver))
+      return false;
+    if (!dormantWeavers.contains(weaver))
+      dormantWeavers.add(weaver);
+    if (!shutdownHookRegistered) {
+      Runtime.getRuntime().addShutdownHook(new Thread(Weaver::resetDormantWeavers, "Sarek dormant weaver reset"));
+      shutdownHookRegistered = true;
+    }
+    return true;
+  }
+
+  /**
+   * Replace a dormant weaver compatible with the given one by the latter, without retransforming anything. The new
+   * weaver adopts the dormant one's weaving state.
+   *
+   * @param weaver new weaver, not registered yet
+   * @return adopted dormant weaver, or null if there is no compatible one. In the latter case, the new weaver is not
+   * registered either.
+   */
+  static synchronized Weaver adoptDormant(Weaver weaver) {
+    for (Weaver dormantWeaver : dormantWeavers) {
+      if (!weaver.canAdopt(dormantWeaver))
+        continue;
+      dormantWeavers.remove(dormantWeaver);
+      // Copy the weaving state before publishing the new weaver, so it is complete once transformations can see it
+      weaver.adopt(dormantWeaver);
+      Weaver[] newWeavers = weavers.clone();
+      newWeavers[Arrays.asList(newWeavers).indexOf(dormantWeaver)] = weaver;
+      weavers = newWeavers;
+      return dormantWeaver;
+    }
+    return null;
+  }
+
+  /**
+   * @return snapshot of all dormant weavers
+   */
+  static synchronized List<Weaver> getDormantWeavers() {
+    return new ArrayList<>(dormantWeavers);
+  }
+
+  private static AgentBuilder createAgentBuilder() {
+    return new AgentBuilder.Default()
+      .disableClassFormatChanges()
+      .ignore(IGNORED_TYPES)
+      // Share parsed type descriptions with other Sarek transformers, except for the type being transformed. Locate
+      // class files via weak class loader references, so cached type descriptions do not keep class loaders alive.
+      .with(CachingPoolStrategy.INSTANCE)
+      .with(CachingPoolStrategy.CLASS_FILE_BUFFER_STRATEGY)
+      .with(AgentBuilder.LocationStrategy.ForClassLoader.WEAK)
+      .with(RETRANSFORMATION)
+      // The raw transformer is installed by 'register', which also takes care of retransforming classes
+      // TODO: make weaver logging configurable in general and with regard to '.withTransformationsOnly()' in particular
+      .with(AgentBuilder.Listener.StreamWriting.toSystemError().withTransformationsOnly())
+      // Dump all transformed class files into a directory
+      //.with(new TransformedClassFileWriter("transformed-aspect"))
+      .type((typeDescription, classLoader, module, classBeingRedefined, protectionDomain) -> {
+        matchingWeavers.remove();
+        List<Weaver> matched = findMatchingWeavers(typeDescription);
+        if (matched.isEmpty())
+          return false;
+        matchingWeavers.set(new MatchingWeavers(typeDescription, matched));
+        return true;
+      })
+      .transform((builder, typeDescription, classLoader, module) -> {
+        // ByteBuddy calls the transformer right after the type matcher, passing the same type description. Only if
+        // another class was transformed on this thread in between, the weavers need to be matched again.
+        MatchingWeavers matched = matchingWeavers.get();
+        matchingWeavers.remove();
+        List<Weaver> weavers = matched != null && matched.typeDescription == typeDescription
+          ? matched.weavers
+          : findMatchingWeavers(typeDescription);
+        Weaver.resetWovenMethods(typeDescription, classLoader);
+        for (Weaver weaver : weavers)
+          builder = weaver.transform(builder, typeDescription, classLoader);
+        return builder;
+      });
+  }
+
+  private static List<Weaver> findMatchingWeavers(TypeDescription typeDescription) {
+    List<Weaver> matched = new ArrayList<>();
+    for (Weaver weaver : weavers) {
+      if (weaver.matches(typeDescription))
+        matched.add(weaver);
+    }
+    return matched;
+  }
+
+  private static void retransform(Weaver weaver) {
+    List<Class<?>> classes = findLoadedClasses(weaver);
+    if (weaver.precomputesInParallel())
+      transformer.addPrecomputationCandidates(classes);
+    WeavingTransaction.retransform(classes);
+  }
+
+  private static List<Class<?>> findLoadedClasses(Weaver weaver) {
+    Instrumentation instrumentation = Agent.getInstrumentation();
+    // Only match the whole JVM's loaded classes (often tens of thousands) if the weaver does not know its candidates
+    Collection<Class<?>> candidates = weaver.getDiscoveryCandidates();
+    if (candidates == null)
+      candidates = Arrays.asList(instrumentation.getAllLoadedClasses());
+    List<Class<?>> classes = new ArrayList<>();
+    for (Class<?> type : candidates) {
+      if (!instrumentation.isModifiableClass(type))
+        continue;
+      if (matches(weaver, type))
+        classes.add(type);
+    }
+    return classes;
+  }
+
+  private static boolean matches(Weaver weaver, Class<?> type) {
+    try {
+      TypeDescription typeDescription = TypeDescription.ForLoadedType.of(type);
+      return !IGNORED_TYPES.matches(typeDescription) && weaver.matches(typeDescription);
+    }
+    catch (RuntimeException | LinkageError ignored) {
+      // Type hierarchy cannot be resolved, e.g. due to a missing dependency -> cannot be woven either
+      return false;
+    }
+  }
+
+  /**
+   * Class file transformer delegating to the ByteBuddy transformer weaving all registered weavers' advices. Before a
+   * batch of classes is retransformed, the transformed class files of classes retransformed because of registering or
+   * unregistering weavers using parallel precomputation are computed in parallel on the common fork/join pool. While
+   * the JVM retransforms the batch, each precomputed class file is merely returned instead of transforming the class
+   * again, so the application spends less time in the retransformation.
+   * <p>
+   * A precomputed class file is only used if the set of registered weavers has not changed in the meantime and the JVM
+   * passes the same original class file as the one used for precomputation. The JVM reconstitutes original class files
+   * from loaded classes, so they never equal the class files found by the class loader. Therefore, the class file
+   * passed by the JVM is remembered upon each retransformation of a precomputation candidate, as long as a registered
+   * weaver using parallel precomputation matches the class. Only classes with a remembered class file are precomputed,
+   * all others are transformed during the retransformation as usual. I.e. registering a weaver does not benefit from
+   * precomputation, but unregistering it does, as well as registering or unregistering other weavers using parallel
+   * precomputation and matching the same classes while it is registered.
+   */
+  private static class PrecomputingTransformer
+    implements ClassFileTransformer, WeavingTransaction.RetransformationListener
+  {
+    private final ClassFileTransformer delegate;
+    private final Set<Class<?>> precomputationCandidates = ConcurrentHashMap.newKeySet();
+    private final Map<Class<?>, PrecomputedClassFile> precomputedClassFiles = new ConcurrentHashMap<>();
+    // Original class files as passed by the JVM upon retransformation, not keeping classes alive
+    private final WeakIdentityMap<Class<?>, byte[]> originalClassFiles = new WeakIdentityMap<>();
+
+    private PrecomputingTransformer(ClassFileTransformer delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public byte[] transform(
+      ClassLoader classLoader,
+      String className,
+      Class<?> classBeingRedefined,
+      ProtectionDomain protectionDomain,
+      byte[] classFileBuffer
+    ) throws IllegalClassFormatException
+    {
+      if (classBeingRedefined != null && precomputationCandidates.remove(classBeingRedefined)) {
+        originalClassFiles.put(classBeingRedefined, classFileBuffer);
+        PrecomputedClassFile precomputedClassFile = precomputedClassFiles.remove(classBeingRedefined);
+        if (
+          precomputedClassFile != null
+            && precomputedClassFile.weavers == weavers
+            && Arrays.equals(precomputedClassFile.originalClassFile, classFileBuffer)
+        )
+          return precomputedClassFile.transformedClassFile;
+      }
+      return delegate.transform(classLoader, className, classBeingRedefined, protectionDomain, classFileBuffer);
+    }
+
+    private void addPrecomputationCandidates(Collection<Class<?>> classes) {
+      precomputationCandidates.addAll(classes);
+    }
+
+    @Override
+    public void beforeRetransformation(Collection<Class<?>> classes) {
+      Weaver[] currentWeavers = weavers;
+      // Precomputing classes without remembered original class files is wasted effort, see above
+      List<Class<?>> precomputedClasses = classes.stream()
+        .filter(type -> precomputationCandidates.contains(type) && originalClassFiles.get(type) != null)
+        .collect(toList());
+      // Parallelising a single class does not pay off
+      if (precomputedClasses.size() < 2)
+        return;
+      precomputedClasses.parallelStream().forEach(type -> precompute(type, currentWeavers));
+    }
+
+    private void precompute(Class<?> type, Weaver[] currentWeavers) {
+      try {
+        byte[] originalClassFile = originalClassFiles.get(type);
+        if (originalClassFile == null)
+          return;
+        byte[] transformedClassFile = delegate.transform(
+          type.getClassLoader(), type.getName().replace('.', '/'), type, type.getProtectionDomain(), originalClassFile
+        );
+        precomputedClassFiles.put(
+          type, new PrecomputedClassFile(currentWeavers, originalClassFile, transformedClassFile)
+        );
+      }
+      catch (Exception | LinkageError ignored) {
+        // Transformation failed -> transform during retransformation as usual
+      }
+    }
+
+    @Override
+    public void afterRetransformation(Collection<Class<?>> classes) {
+      Weaver[] currentWeavers = weavers;
+      for (Class<?> type : classes) {
+        // Drop class files not used by the JVM, e.g. because of a failed retransformation
+        precomputationCandidates.remove(type);
+        precomputedClassFiles.remove(type);
+        // Only keep original class files of classes which are precomputed again when unregistering a weaver
+        if (originalClassFiles.get(type) != null && !isPrecomputedLater(type, currentWeavers))
+          originalClassFiles.remove(type);
+      }
+    }
+
+    private boolean isPrecomputedLater(Class<?> type, Weaver[] currentWeavers) {
+      for (Weaver weaver : currentWeavers) {
+        if (weaver.precomputesInParallel() && matches(weaver, type))
+          return true;
+      }
+      return false;
+    }
+  }
+
+  private static class MatchingWeavers {
+    private final TypeDescription typeDescription;
+    private final List<Weaver> weavers;
+
+    private MatchingWeavers(TypeDescription typeDescription, List<Weaver> weavers) {
+      this.typeDescription = typeDescription;
+      this.weavers = weavers;
+    }
+  }
+
+  private static class PrecomputedClassFile {
+    private final Weaver[] weavers;
+    private final byte[] originalClassFile;
+    // Null if the class is not to be transformed
+    private final byte[] transformedClassFile;
+
+    private PrecomputedClassFile(Weaver[] weavers, byte[] originalClassFile, byte[] transformedClassFile) {
+      this.weavers = weavers;
+      this.originalClassFile = originalClassFile;
+      this.transformedClassFile = transformedClassFile;
+    }
+  }
+}
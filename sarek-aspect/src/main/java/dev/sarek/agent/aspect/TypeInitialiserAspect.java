@@ -10,16 +10,23 @@ import static net.bytebuddy.implementation.bytecode.assign.Assigner.Typing.DYNAM
 public abstract class TypeInitialiserAspect extends Aspect<Class<?>> {
 
   // TODO: What happens if more than one transformer matches the same instance or class?
-  // TODO: Try @Advice.Local for transferring additional state between before/after advices if necessary
 
+  @SuppressWarnings("UnusedAssignment")
   @OnMethodEnter(skipOn = OnDefaultValue.class)
   public static boolean before(
-    @Advice.Origin("#t") String staticInitialiserClassName
-  ) throws ClassNotFoundException
+    @Advice.Origin Class<?> targetClass,
+    @Advice.Local("advice") TypeInitialiserAroundAdvice advice,
+    @WovenClassId int classId,
+    @WovenMethodId int methodId
+  )
   {
-    // Get advice for target class
-    Class<?> targetClass = toClass(staticInitialiserClassName);
-    TypeInitialiserAroundAdvice advice = getAroundAdvice(targetClass);
+    // Fast path: If no weaver having woven this class has registered targets, there is nothing to look up
+    if (!ClassActivityRegistry.isActive(classId))
+      return true;
+
+    // Get advice for target class, passing it on to 'after' via @Local. The target class is a class constant, i.e.
+    // there is no need to resolve it by name via a class loader.
+    advice = getAroundAdvice(targetClass, methodId);
 
     // If no advice is registered, proceed to target type initialiser normally
     if (advice == null)
@@ -32,16 +39,12 @@ public abstract class TypeInitialiserAspect extends Aspect<Class<?>> {
   @SuppressWarnings("UnusedAssignment")
   @OnMethodExit(onThrowable = Throwable.class, backupArguments = false)
   public static void after(
-    @Advice.Origin("#t") String staticInitialiserClassName,
+    @Advice.Origin Class<?> targetClass,
     @Advice.Enter boolean proceedMode,
-    @Advice.Thrown(readOnly = false, typing = DYNAMIC) Throwable throwable
-  ) throws ClassNotFoundException
+    @Advice.Thrown(readOnly = false, typing = DYNAMIC) Throwable throwable,
+    @Advice.Local("advice") TypeInitialiserAroundAdvice advice
+  )
   {
-    // Get advice for target class
-    Class<?> targetClass = toClass(staticInitialiserClassName);
-    // TODO: use @Advice.Local in order to communicate advice to 'after' method instead of a 2nd lookup
-    TypeInitialiserAroundAdvice advice = getAroundAdvice(targetClass);
-
     // If no advice is registered, just pass through result
     if (advice == null)
       return;
@@ -58,28 +61,12 @@ public abstract class TypeInitialiserAspect extends Aspect<Class<?>> {
   /**
    * Keep this method public because it must be callable from advice code woven into other classes
    *
-   * @param target target class to find advice for
+   * @param targetClass target class to find advice for
+   * @param methodId    ID of type initialiser to find advice for, see {@link MethodIdRegistry}
    * @return type initialiser around advice if found, {@code null} otherwise
    */
-  public static TypeInitialiserAroundAdvice getAroundAdvice(Class<?> target) {
-    return adviceRegistry
-      .getValues(target)
-      .stream()
-      .filter(adviceDescription -> adviceDescription.adviceType.equals(AdviceType.TYPE_INITIALISER_ADVICE))
-      .map(adviceDescription -> (TypeInitialiserAroundAdvice) adviceDescription.advice)
-      .findFirst()  // TODO: What if there are multiple static blocks?
-      .orElse(null);
-  }
-
-  /**
-   * Keep this method public because it must be callable from advice code woven into other classes
-   *
-   * @param className class name to be converted into a {@link Class}
-   * @return class instance
-   * @throws ClassNotFoundException if class for the given name was not found
-   */
-  public static Class<?> toClass(String className) throws ClassNotFoundException {
-    return Class.forName(className, false, ClassLoader.getSystemClassLoader());
+  public static TypeInitialiserAroundAdvice getAroundAdvice(Class<?> targetClass, int methodId) {
+    return (TypeInitialiserAroundAdvice) findClassAdvice(targetClass, AdviceType.TYPE_INITIALISER_ADVICE, methodId);
   }
 
 }
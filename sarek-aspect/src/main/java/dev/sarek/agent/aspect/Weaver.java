@@ -1,19 +1,20 @@
 package dev.sarek.agent.aspect;
 
-import dev.sarek.agent.Agent;
-import net.bytebuddy.agent.builder.AgentBuilder;
-import net.bytebuddy.agent.builder.ResettableClassFileTransformer;
+import dev.sarek.agent.WeavingTransaction;
+import dev.sarek.agent.util.WeakIdentityMap;
+import dev.sarek.agent.util.WeakIdentitySet;
 import net.bytebuddy.asm.Advice;
+import net.bytebuddy.asm.AsmVisitorWrapper;
 import net.bytebuddy.description.method.MethodDescription;
 import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.DynamicType;
 import net.bytebuddy.matcher.ElementMatcher.Junction;
 
-import java.lang.instrument.Instrumentation;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static dev.sarek.agent.aspect.Aspect.AdviceType.TYPE_INITIALISER_ADVICE;
 import static dev.sarek.agent.aspect.Aspect.CLASS_FILE_LOCATOR;
-import static net.bytebuddy.agent.builder.AgentBuilder.RedefinitionStrategy.RETRANSFORMATION;
 import static net.bytebuddy.matcher.ElementMatchers.*;
 
 // TODO: Add builder API to enable multiple advices per Weaver, ideally also mixed method, constructor, type initialiser
@@ -29,42 +30,71 @@ public class Weaver {
     .and(isPublic()).and(not(isStatic()))
     .and(named("equals")).and(takesArguments(1))
     .and(returns(boolean.class));
+  // Parse advice templates only once, not for each woven type
+  private static final AsmVisitorWrapper HASH_CODE_ADVICE =
+    Advice.to(HashCodeAspect.class, CLASS_FILE_LOCATOR).on(HASH_CODE_METHOD);
+  private static final AsmVisitorWrapper EQUALS_ADVICE =
+    Advice.to(EqualsAspect.class, CLASS_FILE_LOCATOR).on(EQUALS_METHOD);
 
   /**
-   * TODO: make thread-safe
+   * Keeps track of which weavers have woven which methods. Methods are registered per defining class loader and
+   * structurally, i.e. by their {@link MethodIdRegistry} IDs. Method descriptions are not retained, because they might
+   * reference their types' class loaders. Class loaders are referenced weakly, i.e. this registry does not prevent
+   * woven classes from being unloaded.
+   * <p>
+   * The registry is thread-safe. Looking up or registering methods only locks when encountering a new class loader, so
+   * classes can be woven concurrently, e.g. during parallel class loading.
    */
   public static class WovenMethodRegistry {
-    private Map<MethodDescription, Set<Weaver>> registry = new HashMap<>();
+    // Contains a woven methods table per class loader
+    private final WeakIdentityMap<ClassLoader, Map<Integer, Set<Weaver>>> registry = new WeakIdentityMap<>();
 
-    public boolean isWoven(MethodDescription methodDescription) {
-      Set<Weaver> weavers = registry.get(methodDescription);
+    public boolean isWoven(ClassLoader classLoader, MethodDescription methodDescription) {
+      Map<Integer, Set<Weaver>> methods = registry.get(classLoader);
+      if (methods == null)
+        return false;
+      Set<Weaver> weavers = methods.get(MethodIdRegistry.getId(methodDescription));
       if (weavers == null)
         return false;
       return weavers.size() > 0;
     }
 
-    public WovenMethodRegistry add(MethodDescription methodDescription, Weaver weaver) {
+    public WovenMethodRegistry add(ClassLoader classLoader, MethodDescription methodDescription, Weaver weaver) {
       registry
-        .computeIfAbsent(methodDescription, methDesc -> new HashSet<>())
+        .computeIfAbsent(classLoader, loader -> new ConcurrentHashMap<>())
+        .computeIfAbsent(MethodIdRegistry.getId(methodDescription), methodId -> ConcurrentHashMap.newKeySet())
         .add(weaver);
       return this;
     }
 
-    public WovenMethodRegistry remove(MethodDescription methodDescription, Weaver weaver) {
-      Set<Weaver> weavers = registry.get(methodDescription);
-      if (weavers != null)
-        weavers.remove(weaver);
+    public WovenMethodRegistry removeAll(Weaver weaver) {
+      for (Map<Integer, Set<Weaver>> methods : registry.values()) {
+        for (Set<Weaver> weavers : methods.values())
+          weavers.remove(weaver);
+      }
       return this;
     }
 
-    public WovenMethodRegistry removeAll(Weaver weaver) {
-      for (MethodDescription methodDescription : registry.keySet())
-        remove(methodDescription, weaver);
+    public WovenMethodRegistry replaceAll(Weaver oldWeaver, Weaver newWeaver) {
+      for (Map<Integer, Set<Weaver>> methods : registry.values()) {
+        for (Set<Weaver> weavers : methods.values()) {
+          if (weavers.remove(oldWeaver))
+            weavers.add(newWeaver);
+        }
+      }
       return this;
     }
 
-    public WovenMethodRegistry clear() {
-      registry.clear();
+    public WovenMethodRegistry removeAll(ClassLoader classLoader, TypeDescription typeDescription) {
+      Map<Integer, Set<Weaver>> methods = registry.get(classLoader);
+      if (methods == null)
+        return this;
+      for (MethodDescription methodDescription : typeDescription.getDeclaredMethods()) {
+        // Methods without IDs have never been woven
+        int methodId = MethodIdRegistry.findId(methodDescription);
+        if (methodId >= 0)
+          methods.remove(methodId);
+      }
       return this;
     }
   }
@@ -76,7 +106,13 @@ public class Weaver {
   public static class Builder {
     private Junction<TypeDescription> typeMatcher;
     private final List<AdviceDescription> adviceDescriptions = new ArrayList<>();
+    private final List<AsmVisitorWrapper> visitorWrappers = new ArrayList<>();
     private boolean provideHashCodeEquals = false;
+    private boolean dynamicDispatch = false;
+    private boolean weakTargets = false;
+    private boolean dormantWeaving = false;
+    private boolean precomputeInParallel = false;
+    private final List<Class<?>> discoveryRoots = new ArrayList<>();
     private final List<Object> targets = new ArrayList<>();
 
     private Builder(Junction<TypeDescription> typeMatcher) {
@@ -88,11 +124,106 @@ public class Weaver {
       return this;
     }
 
+    /**
+     * Apply an additional ASM visitor to each type woven by this weaver, e.g. for constructor mocking. The visitor is
+     * applied in the same transformation as the weaver's advices, i.e. no additional retransformation is necessary.
+     *
+     * @param visitorWrapper ASM visitor wrapper to be applied before the weaver's advices
+     * @return this builder
+     */
+    public Builder addVisitor(AsmVisitorWrapper visitorWrapper) {
+      visitorWrappers.add(visitorWrapper);
+      return this;
+    }
+
     public Builder provideHashCodeEquals(boolean value) {
       provideHashCodeEquals = value;
       return this;
     }
 
+    /**
+     * Make woven code obtain static method and constructor advices from {@code invokedynamic} call sites instead of
+     * looking them up in the advice registry on each call. See {@link DynamicDispatch} for details and caveats.
+     *
+     * @param value true if dynamic dispatch should be used, false for registry lookup (default)
+     * @return this builder
+     */
+    public Builder dynamicDispatch(boolean value) {
+      dynamicDispatch = value;
+      return this;
+    }
+
+    /**
+     * Hold targets weakly, i.e. targets which are no longer referenced elsewhere can be garbage-collected without being
+     * removed explicitly via {@link Weaver#removeTarget(Object)}. This is useful for spying on many short-lived
+     * objects. Please note that advices must not reference targets, otherwise targets are kept alive nevertheless.
+     * <p>
+     * <b>Limitation:</b> Garbage-collected targets are only noticed when targets are added or removed. I.e. if the last
+     * target of a weaver is garbage-collected, the woven classes stay activated (see {@link ClassActivityRegistry}) and
+     * woven code keeps looking up advices, finding none, until a target is added or removed or the weaver is
+     * unregistered.
+     *
+     * @param value true if targets should be held weakly, false if they should be held until removed (default)
+     * @return this builder
+     */
+    public Builder weakTargets(boolean value) {
+      weakTargets = value;
+      return this;
+    }
+
+    /**
+     * Keep classes woven when unregistering the weaver via {@link Weaver#unregisterTransformer()}, only removing its
+     * targets, i.e. woven code no longer dispatches to the weaver's advices. A later weaver built with dormant weaving
+     * and an equal configuration (type matcher, method matchers, advice types, visitors and other weaving options, but
+     * not advice instances or targets) adopts the woven classes without retransforming them. Matchers are compared via
+     * {@code equals}, which works for matchers created by ByteBuddy's {@code ElementMatchers}, but not for lambdas.
+     * <p>
+     * This saves two retransformations per weaver if e.g. many tests mock the same classes in the same way. Dormant
+     * weavers are reset via {@link Weaver#resetDormantWeavers()}, which is also called when the JVM shuts down. Until
+     * then they keep their advices alive.
+     *
+     * @param value true if woven classes should be kept dormant for reuse, false if they should be reset (default)
+     * @return this builder
+     */
+    public Builder dormantWeaving(boolean value) {
+      dormantWeaving = value;
+      return this;
+    }
+
+    /**
+     * When unregistering this weaver retransforms loaded classes, compute the transformed class files in parallel
+     * before handing them to the JVM in one batch, instead of transforming one class after another during the
+     * retransformation. This shortens the time the application spends in the retransformation if the weaver matches
+     * many loaded classes, e.g. for a timing aspect applied to a whole package. It does not pay off for few classes.
+     * <p>
+     * Precomputation requires the original class file the JVM passed when registering this weaver. So registering this
+     * weaver itself retransforms one class after another as usual. Only unregistering it and retransforming its classes
+     * again while it is registered, e.g. when registering or unregistering other weavers using parallel precomputation
+     * for the same classes, benefit.
+     *
+     * @param value true if transformed class files should be precomputed in parallel, false otherwise (default)
+     * @return this builder
+     */
+    public Builder precomputeInParallel(boolean value) {
+      precomputeInParallel = value;
+      return this;
+    }
+
+    /**
+     * Only consider the given classes and their super types (super classes and implemented interfaces) when looking for
+     * already loaded classes to be woven (or reset) by this weaver, instead of matching all classes loaded in the JVM.
+     * This makes registering and unregistering the weaver much cheaper, but is only correct if the type matcher does
+     * not match any other loaded classes, e.g. for {@code is(MyClass.class).or(isSuperTypeOf(MyClass.class))}. Classes
+     * loaded later are matched normally, no matter if they are part of the hierarchy or not.
+     *
+     * @param classes classes whose type hierarchies contain all loaded classes matched by this weaver
+     * @return this builder
+     */
+    public Builder discoverHierarchyOf(Class<?>... classes) {
+      discoveryRoots.addAll(Arrays.asList(classes));
+      return this;
+    }
+
     public Builder excludeTypes(Junction<TypeDescription> excludedTypes) {
       typeMatcher = typeMatcher.and(not(excludedTypes));
       return this;
@@ -104,13 +235,20 @@ public class Weaver {
     }
 
     public Weaver build() {
-      return new Weaver(typeMatcher, adviceDescriptions, provideHashCodeEquals, targets.toArray());
+      return new Weaver(
+        typeMatcher, adviceDescriptions, visitorWrappers, provideHashCodeEquals, dynamicDispatch, weakTargets,
+        dormantWeaving, precomputeInParallel, discoveryRoots, targets.toArray()
+      );
     }
 
     public static class AdviceDescription {
       public final Junction<MethodDescription> methodMatcher;
       public final AroundAdvice<?> advice;
       public Aspect.AdviceType adviceType;
+      // Sorted IDs (see MethodIdRegistry) of woven methods matched by 'methodMatcher'. Method IDs are global, so the
+      // array size only depends on the number of matched methods, not on the highest ID. Copied on write under lock,
+      // read lock-free by woven code.
+      private volatile int[] matchedMethodIds = new int[0];
 
       public AdviceDescription(Junction<MethodDescription> methodMatcher, AroundAdvice<?> advice) {
         if (advice == null)
@@ -120,31 +258,99 @@ public class Weaver {
         adviceType = Aspect.AdviceType.forAdvice(advice);
         this.methodMatcher = methodMatcher == null || adviceType.equals(TYPE_INITIALISER_ADVICE) ? any() : methodMatcher;
       }
+
+      /**
+       * @param methodId method ID as assigned by {@link MethodIdRegistry}
+       * @return true if this advice's method matcher has matched the given method when weaving it, false otherwise
+       */
+      public boolean matches(int methodId) {
+        return Arrays.binarySearch(matchedMethodIds, methodId) >= 0;
+      }
+
+      private synchronized void addMatchedMethod(int methodId) {
+        int[] oldMatchedMethodIds = matchedMethodIds;
+        int index = Arrays.binarySearch(oldMatchedMethodIds, methodId);
+        if (index >= 0)
+          return;
+        int insertionPoint = -index - 1;
+        int[] newMatchedMethodIds = new int[oldMatchedMethodIds.length + 1];
+        System.arraycopy(oldMatchedMethodIds, 0, newMatchedMethodIds, 0, insertionPoint);
+        newMatchedMethodIds[insertionPoint] = methodId;
+        System.arraycopy(
+          oldMatchedMethodIds, insertionPoint,
+          newMatchedMethodIds, insertionPoint + 1,
+          oldMatchedMethodIds.length - insertionPoint
+        );
+        matchedMethodIds = newMatchedMethodIds;
+      }
+
+      private synchronized void addMatchedMethods(AdviceDescription other) {
+        // Merge both sorted arrays, dropping duplicates
+        int[] ids = matchedMethodIds;
+        int[] otherIds = other.matchedMethodIds;
+        int[] mergedIds = new int[ids.length + otherIds.length];
+        int i = 0, j = 0, size = 0;
+        while (i < ids.length || j < otherIds.length) {
+          int id = j == otherIds.length || i < ids.length && ids[i] <= otherIds[j] ? ids[i] : otherIds[j];
+          if (i < ids.length && ids[i] == id)
+            i++;
+          if (j < otherIds.length && otherIds[j] == id)
+            j++;
+          mergedIds[size++] = id;
+        }
+        matchedMethodIds = Arrays.copyOf(mergedIds, size);
+      }
     }
 
   }
 
   private final Junction<TypeDescription> typeMatcher;
   private final List<Builder.AdviceDescription> adviceDescriptions;
-  private final ResettableClassFileTransformer transformer;
+  private final List<AsmVisitorWrapper> visitorWrappers;
   private final boolean provideHashCodeEquals;
-  // TODO: maybe replace by a Set<WeakReference>
-  private final Set<Object> targets = Collections.synchronizedSet(new HashSet<>());
+  private final boolean dynamicDispatch;
+  private final boolean dormantWeaving;
+  private final boolean precomputeInParallel;
+  // Candidates for discovering loaded classes to be woven, null if all loaded classes are candidates
+  private final Set<Class<?>> discoveryCandidates;
+  // Targets registered on this weaver, identity-based
+  private final WeakIdentitySet<Object> targets = new WeakIdentitySet<>();
+  // Neither the advice registry nor 'targets' keep targets alive, so this set does unless targets are held weakly
+  private final Set<Object> strongTargets;
+  // IDs of classes woven by this weaver, see ClassActivityRegistry. Guarded by 'this'.
+  private final Set<Integer> wovenClassIds = new HashSet<>();
+  // Have the classes woven by this weaver been activated in ClassActivityRegistry? Guarded by 'this'.
+  private boolean active;
 
   private Weaver(
     Junction<TypeDescription> typeMatcher,
     List<Builder.AdviceDescription> adviceDescriptions,
+    List<AsmVisitorWrapper> visitorWrappers,
     boolean provideHashCodeEquals,
+    boolean dynamicDispatch,
+    boolean weakTargets,
+    boolean dormantWeaving,
+    boolean precomputeInParallel,
+    List<Class<?>> discoveryRoots,
     Object... targets
   )
   {
 //    System.out.println("Creating new weaver " + this);
     this.typeMatcher = typeMatcher;
     this.adviceDescriptions = adviceDescriptions;
+    this.visitorWrappers = visitorWrappers;
     this.provideHashCodeEquals = provideHashCodeEquals;
+    this.dynamicDispatch = dynamicDispatch;
+    this.dormantWeaving = dormantWeaving;
+    this.precomputeInParallel = precomputeInParallel;
+    this.discoveryCandidates = discoveryRoots.isEmpty() ? null : getTypeHierarchy(discoveryRoots);
+    this.strongTargets = weakTargets
+      ? null
+      : Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
 
     try {
-      this.transformer = registerTransformer();
+      if (!dormantWeaving || TransformerHub.adoptDormant(this) == null)
+        TransformerHub.register(this);
       for (Object target : targets)
         addTarget(target);
     }
@@ -161,131 +367,231 @@ public class Weaver {
   }
 
   public Weaver addTarget(Object target) throws IllegalArgumentException {
-    Aspect.adviceRegistry.addAll(target, adviceDescriptions);
+    try {
+      Aspect.adviceRegistry.addAll(target, adviceDescriptions);
+    }
+    finally {
+      Aspect.adviceRegistryChanged(target);
+    }
     targets.add(target);
+    if (strongTargets != null)
+      strongTargets.add(target);
+    updateActivity();
     return this;
   }
 
   public Weaver removeTarget(Object target) {
     Aspect.adviceRegistry.removeAll(target, adviceDescriptions);
+    Aspect.adviceRegistryChanged(target);
     targets.remove(target);
+    if (strongTargets != null)
+      strongTargets.remove(target);
+    updateActivity();
     return this;
   }
 
-  protected ResettableClassFileTransformer registerTransformer() {
-    return createAgentBuilder().installOn(Agent.getInstrumentation());
+  /**
+   * Activate all classes woven by this weaver when the first target is added, deactivate them when the last target
+   * is removed
+   */
+  private synchronized void updateActivity() {
+    boolean hasTargets = targets.size() > 0;
+    if (hasTargets == active)
+      return;
+    active = hasTargets;
+    if (active)
+      ClassActivityRegistry.activate(wovenClassIds);
+    else
+      ClassActivityRegistry.deactivate(wovenClassIds);
+  }
+
+  private synchronized void registerWovenClass(TypeDescription typeDescription) {
+    int classId = ClassActivityRegistry.getId(typeDescription);
+    if (wovenClassIds.add(classId) && active)
+      ClassActivityRegistry.activate(Collections.singleton(classId));
   }
 
+  /**
+   * Take over the weaving state of a dormant weaver which is about to be replaced by this one in
+   * {@link TransformerHub}. Because the configurations are equal, both weavers match the same classes and methods. The
+   * state is merged, so methods matched by this weaver in the meantime are kept.
+   */
+  void adopt(Weaver dormantWeaver) {
+    for (int i = 0; i < adviceDescriptions.size(); i++)
+      adviceDescriptions.get(i).addMatchedMethods(dormantWeaver.adviceDescriptions.get(i));
+    Set<Integer> dormantClassIds;
+    synchronized (dormantWeaver) {
+      dormantClassIds = new HashSet<>(dormantWeaver.wovenClassIds);
+    }
+    synchronized (this) {
+      wovenClassIds.addAll(dormantClassIds);
+    }
+    wovenMethodRegistry.replaceAll(dormantWeaver, this);
+  }
+
+  /**
+   * @param dormantWeaver dormant weaver
+   * @return true if this weaver weaves exactly like the dormant weaver, i.e. it can adopt the latter's woven classes
+   */
+  boolean canAdopt(Weaver dormantWeaver) {
+    if (
+      !typeMatcher.equals(dormantWeaver.typeMatcher)
+        || !visitorWrappers.equals(dormantWeaver.visitorWrappers)
+        || provideHashCodeEquals != dormantWeaver.provideHashCodeEquals
+        || dynamicDispatch != dormantWeaver.dynamicDispatch
+        || adviceDescriptions.size() != dormantWeaver.adviceDescriptions.size()
+    )
+      return false;
+    for (int i = 0; i < adviceDescriptions.size(); i++) {
+      Builder.AdviceDescription adviceDescription = adviceDescriptions.get(i);
+      Builder.AdviceDescription dormantAdviceDescription = dormantWeaver.adviceDescriptions.get(i);
+      if (
+        adviceDescription.adviceType != dormantAdviceDescription.adviceType
+          || !adviceDescription.methodMatcher.equals(dormantAdviceDescription.methodMatcher)
+      )
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Remove all targets and unregister the weaver, resetting the classes woven by it. With
+   * {@link Builder#dormantWeaving(boolean) dormant weaving}, only remove the targets and keep the classes woven instead.
+   */
   public void unregisterTransformer() {
+    if (dormantWeaving) {
+      for (Object target : targets.getElements())
+        removeTarget(target);
+      if (TransformerHub.makeDormant(this))
+        return;
+    }
     unregisterTransformer(true);
   }
 
+  /**
+   * Unregister all dormant weavers (see {@link Builder#dormantWeaving(boolean)}), resetting their classes in a single
+   * retransformation
+   */
+  public static void resetDormantWeavers() {
+    try (WeavingTransaction transaction = WeavingTransaction.begin()) {
+      for (Weaver weaver : TransformerHub.getDormantWeavers())
+        weaver.unregisterTransformer(true);
+    }
+  }
+
   // TODO: Maybe delete this method because usually when unregistering the transformer we also reset it.
   private void unregisterTransformer(boolean reset) {
-    for (Object target : targets.toArray())
+    for (Object target : targets.getElements())
       removeTarget(target);
-    if (reset)
-      resetTransformer();
-    Agent.getInstrumentation().removeTransformer(transformer);
-  }
-
-  private void resetTransformer() {
 //    System.out.println("[Aspect Agent] Resetting transformer for weaver " + this);
     // If transformation was reversed successfully (i.e. target classes are no longer woven),
     // remove all associated methods for this weaver from the woven method registry
-    if (transformer.reset(Agent.getInstrumentation(), RETRANSFORMATION))
+    if (TransformerHub.unregister(this, reset) && reset)
       wovenMethodRegistry.removeAll(this);
 //    System.out.println("[Aspect Agent] Resetting transformer for weaver " + this + " finished");
   }
 
-  protected AgentBuilder createAgentBuilder() {
-    AgentBuilder.Identified.Narrowable narrowable = new AgentBuilder.Default()
-      .disableClassFormatChanges()
-      .ignore(none())
-      .with(RETRANSFORMATION)
-      .with(AgentBuilder.RedefinitionStrategy.Listener.StreamWriting.toSystemError())
-      // TODO: make weaver logging configurable in general and with regard to '.withTransformationsOnly()' in particular
-      .with(AgentBuilder.Listener.StreamWriting.toSystemError().withTransformationsOnly())
-      .with(AgentBuilder.InstallationListener.StreamWriting.toSystemError())
-      .with(new AgentBuilder.InstallationListener.Adapter() {
-        @Override
-        public void onBeforeInstall(Instrumentation instrumentation, ResettableClassFileTransformer classFileTransformer) {
-//          System.out.println("[Aspect Agent] onBeforeInstall: instrumentation = " + instrumentation + ", classFileTransformer = " + classFileTransformer);
-          wovenMethodRegistry.clear();
-          super.onBeforeInstall(instrumentation, classFileTransformer);
-        }
+  private static Set<Class<?>> getTypeHierarchy(Collection<Class<?>> classes) {
+    Set<Class<?>> typeHierarchy = new LinkedHashSet<>();
+    Deque<Class<?>> pendingTypes = new ArrayDeque<>(classes);
+    while (!pendingTypes.isEmpty()) {
+      Class<?> type = pendingTypes.poll();
+      if (!typeHierarchy.add(type))
+        continue;
+      if (type.getSuperclass() != null)
+        pendingTypes.add(type.getSuperclass());
+      pendingTypes.addAll(Arrays.asList(type.getInterfaces()));
+    }
+    return typeHierarchy;
+  }
 
-/*
-        @Override
-        public void onInstall(Instrumentation instrumentation, ResettableClassFileTransformer classFileTransformer) {
-          System.out.println("[Aspect Agent] onInstall: instrumentation = " + instrumentation + ", classFileTransformer = " + classFileTransformer);
-          super.onInstall(instrumentation, classFileTransformer);
-        }
+  /**
+   * @return true if transformed class files should be precomputed in parallel, see
+   * {@link Builder#precomputeInParallel(boolean)}
+   */
+  boolean precomputesInParallel() {
+    return precomputeInParallel;
+  }
 
-        @Override
-        public Throwable onError(Instrumentation instrumentation, ResettableClassFileTransformer classFileTransformer, Throwable throwable) {
-          System.out.println("[Aspect Agent] onError: instrumentation = " + instrumentation + ", classFileTransformer = " + classFileTransformer + ", throwable = " + throwable);
-          return super.onError(instrumentation, classFileTransformer, throwable);
-        }
+  /**
+   * @return classes to be matched when looking for loaded classes to be woven (see
+   * {@link Builder#discoverHierarchyOf(Class[])}), or null if all loaded classes need to be matched
+   */
+  Set<Class<?>> getDiscoveryCandidates() {
+    return discoveryCandidates;
+  }
 
-        @Override
-        public void onReset(Instrumentation instrumentation, ResettableClassFileTransformer classFileTransformer) {
-          System.out.println("[Aspect Agent] onReset: instrumentation = " + instrumentation + ", classFileTransformer = " + classFileTransformer);
-          super.onReset(instrumentation, classFileTransformer);
-        }
-*/
-      })
-      // Dump all transformed class files into a directory
-      //.with(new TransformedClassFileWriter("transformed-aspect"))
-      // Match type + method, then bind to advice
-      .type(typeMatcher);
-
-    AgentBuilder.Identified identified = narrowable;
-
-    if (provideHashCodeEquals) {
-      identified = identified
-        .transform((builder, typeDescription, classLoader, module) ->
-          builder.visit(
-            Advice
-              .to(HashCodeAspect.class, CLASS_FILE_LOCATOR)
-              .on(HASH_CODE_METHOD)
-          )
-        )
-        .transform((builder, typeDescription, classLoader, module) ->
-          builder.visit(
-            Advice
-              .to(EqualsAspect.class, CLASS_FILE_LOCATOR)
-              .on(EQUALS_METHOD)
-          )
-        );
-    }
+  /**
+   * @param typeDescription type to be checked
+   * @return true if this weaver wants to transform the given type
+   */
+  boolean matches(TypeDescription typeDescription) {
+    return typeMatcher.matches(typeDescription);
+  }
+
+  /**
+   * Forget which weavers have woven the methods of a type. {@link TransformerHub} calls this before each transformation
+   * of a type, because (re)transformations always start from the original class file.
+   *
+   * @param typeDescription type about to be transformed
+   * @param classLoader     class loader defining the type
+   */
+  static void resetWovenMethods(TypeDescription typeDescription, ClassLoader classLoader) {
+    wovenMethodRegistry.removeAll(classLoader, typeDescription);
+  }
+
+  /**
+   * Apply this weaver's advices to a type matched by {@link #matches(TypeDescription)}. Called by
+   * {@link TransformerHub}, which passes the same builder through all matching weavers.
+   *
+   * @param builder         builder for the type to be transformed
+   * @param typeDescription type to be transformed
+   * @param classLoader     class loader defining the type
+   * @return builder with this weaver's advices applied
+   */
+  DynamicType.Builder<?> transform(
+    DynamicType.Builder<?> builder,
+    TypeDescription typeDescription,
+    ClassLoader classLoader
+  )
+  {
+    // Register each matched class, even if all of its methods have been woven by another weaver before, because the
+    // woven advice code checks the activity flags of all weavers matching the class
+    registerWovenClass(typeDescription);
+
+    for (AsmVisitorWrapper visitorWrapper : visitorWrappers)
+      builder = builder.visit(visitorWrapper);
+
+    if (provideHashCodeEquals)
+      builder = builder.visit(HASH_CODE_ADVICE).visit(EQUALS_ADVICE);
 
     for (Builder.AdviceDescription adviceDescription : adviceDescriptions) {
-      identified = identified
-        .transform((builder, typeDescription, classLoader, module) ->
-            builder.visit(
-              adviceDescription.adviceType.getAdvice().on(
-                adviceDescription.adviceType.getMethodType()
-                  // Exclude hashCode/equals from user-defined weaving if overridden by HashCodeAspect/EqualsAspect
-                  .and(provideHashCodeEquals ? not(HASH_CODE_METHOD.or(EQUALS_METHOD)) : any())
-                  .and(adviceDescription.methodMatcher)
-                  .and(methodDescription -> {
-                      boolean woven = wovenMethodRegistry.isWoven(methodDescription);
-//                    System.out.println(
-//                      "[Aspect Agent] "
-//                        + (woven ? "Avoid double" : "Perform")
-//                        + " aspect weaving for: " + methodDescription
-//                        + " / weaver = " + this
-//                    );
-                      wovenMethodRegistry.add(methodDescription, this);
-                      return !woven;
-                    }
-                  )
-              )
-            )
-        );
+      builder = builder.visit(
+        adviceDescription.adviceType.on(
+          adviceDescription.adviceType.getMethodType()
+            // Exclude hashCode/equals from user-defined weaving if overridden by HashCodeAspect/EqualsAspect
+            .and(provideHashCodeEquals ? not(HASH_CODE_METHOD.or(EQUALS_METHOD)) : any())
+            .and(adviceDescription.methodMatcher)
+            .and(methodDescription -> {
+                // Remember matched method, even if already woven by another weaver. This replaces matcher
+                // evaluation at runtime.
+                adviceDescription.addMatchedMethod(MethodIdRegistry.getId(methodDescription));
+                boolean woven = wovenMethodRegistry.isWoven(classLoader, methodDescription);
+//              System.out.println(
+//                "[Aspect Agent] "
+//                  + (woven ? "Avoid double" : "Perform")
+//                  + " aspect weaving for: " + methodDescription
+//                  + " / weaver = " + this
+//              );
+                wovenMethodRegistry.add(classLoader, methodDescription, this);
+                return !woven;
+              }
+            ),
+          dynamicDispatch
+        )
+      );
     }
 
-    return (AgentBuilder) identified;
+    return builder;
   }
 }
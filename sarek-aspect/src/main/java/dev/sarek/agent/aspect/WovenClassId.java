@@ -0,0 +1,14 @@
+package dev.sarek.agent.aspect;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Advice parameter annotation binding the {@code int} ID assigned to the instrumented class by
+ * {@link ClassActivityRegistry} at weaving time. The ID is baked into the woven code as a constant.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+public @interface WovenClassId { }
@@ -0,0 +1,94 @@
+package dev.sarek.benchmark;
+
+import dev.sarek.agent.aspect.InstanceMethodAroundAdvice;
+import dev.sarek.agent.aspect.StaticMethodAroundAdvice;
+import dev.sarek.agent.aspect.Weaver;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static net.bytebuddy.matcher.ElementMatchers.is;
+import static net.bytebuddy.matcher.ElementMatchers.named;
+
+/**
+ * Measures throughput of calls to woven instance methods, both for a registered target (advice found and executed),
+ * for an unregistered instance of the same woven class (advice lookup only) and for an instance of a dormant woven
+ * class, i.e. a class woven by a weaver without any registered targets (activity check only). Furthermore, it measures
+ * calls to a woven static method of a registered target class (per-class advice table lookup).
+ * <p>
+ * In order to see how advice lookup scales with the number of threads, run the benchmark with different thread
+ * counts, e.g.
+ * <pre>
+ * java -jar sarek-benchmark/target/benchmarks.jar AdviceLookupBenchmark -t 1
+ * java -jar sarek-benchmark/target/benchmarks.jar AdviceLookupBenchmark -t 4
+ * java -jar sarek-benchmark/target/benchmarks.jar AdviceLookupBenchmark -t max
+ * </pre>
+ * With a lock-free advice registry, throughput per thread should stay roughly constant up to the number of available
+ * cores, i.e. total throughput should scale linearly.
+ * <p>
+ * In order to check allocations per call, add {@code -prof gc}. Unregistered instances and dormant classes should
+ * report (close to) 0 B/op for {@code gc.alloc.rate.norm}, because woven code only boxes arguments if an advice is
+ * going to run.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AdviceLookupBenchmark {
+  private Weaver weaver;
+  private Weaver dormantWeaver;
+  private Calculator target;
+  private Calculator nonTarget;
+  private DormantCalculator dormant;
+
+  @Setup
+  public void setUp() {
+    target = new Calculator();
+    nonTarget = new Calculator();
+    weaver = Weaver
+      .forTypes(is(Calculator.class))
+      .addAdvice(named("add"), new InstanceMethodAroundAdvice(null, null))
+      .addAdvice(named("multiply"), new StaticMethodAroundAdvice(null, null))
+      .addTargets(target, Calculator.class)
+      .build();
+    dormant = new DormantCalculator();
+    dormantWeaver = Weaver
+      .forTypes(is(DormantCalculator.class))
+      .addAdvice(named("add"), new InstanceMethodAroundAdvice(null, null))
+      .build();
+  }
+
+  @TearDown
+  public void tearDown() {
+    weaver.unregisterTransformer();
+    dormantWeaver.unregisterTransformer();
+  }
+
+  @Benchmark
+  public int registeredTarget() {
+    return target.add(1, 2);
+  }
+
+  @Benchmark
+  public int unregisteredInstance() {
+    return nonTarget.add(1, 2);
+  }
+
+  @Benchmark
+  public int registeredStaticMethod() {
+    return Calculator.multiply(1, 2);
+  }
+
+  @Benchmark
+  public int dormantClass() {
+    return dormant.add(1, 2);
+  }
+
+  public static class DormantCalculator {
+    public int add(int a, int b) {
+      return a + b;
+    }
+  }
+}
@@ -0,0 +1,14 @@
+package dev.sarek.benchmark;
+
+/**
+ * Simple class to be woven by benchmarks
+ */
+public class Calculator {
+  public int add(int a, int b) {
+    return a + b;
+  }
+
+  public static int multiply(int a, int b) {
+    return a * b;
+  }
+}
@@ -0,0 +1,77 @@
+package dev.sarek.benchmark;
+
+import dev.sarek.agent.aspect.InstanceMethodAroundAdvice;
+import dev.sarek.agent.aspect.Weaver;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static net.bytebuddy.matcher.ElementMatchers.named;
+
+/**
+ * Measures how the number of active weavers affects class loading. Each invocation loads a fresh copy of
+ * {@link Calculator} in a new class loader while a number of weavers for other (non-existent) types is active. All
+ * weavers share a single class file transformer, so class loading cost should hardly depend on the number of weavers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ClassLoadingBenchmark {
+  private static final String CLASS_NAME = Calculator.class.getName();
+  private static final String CLASS_FILE = CLASS_NAME.replace('.', '/') + ".class";
+
+  @Param({ "0", "10", "50" })
+  private int weaverCount;
+
+  private final List<Weaver> weavers = new ArrayList<>();
+  private URL classPathRoot;
+
+  @Setup
+  public void setUp() throws Exception {
+    for (int i = 0; i < weaverCount; i++) {
+      weavers.add(
+        Weaver
+          .forTypes(named("dev.sarek.benchmark.NotLoaded" + i))
+          .addAdvice(named("add"), new InstanceMethodAroundAdvice(null, null))
+          .build()
+      );
+    }
+    String classFileURL = getClass().getClassLoader().getResource(CLASS_FILE).toString();
+    classPathRoot = new URL(classFileURL.substring(0, classFileURL.length() - CLASS_FILE.length()));
+  }
+
+  @TearDown
+  public void tearDown() {
+    for (Weaver weaver : weavers)
+      weaver.unregisterTransformer();
+    weavers.clear();
+  }
+
+  @Benchmark
+  public Class<?> loadClass() throws ClassNotFoundException {
+    return Class.forName(CLASS_NAME, false, new ChildFirstClassLoader(classPathRoot));
+  }
+
+  private static class ChildFirstClassLoader extends URLClassLoader {
+    private ChildFirstClassLoader(URL classPathRoot) {
+      super(new URL[] { classPathRoot }, ClassLoadingBenchmark.class.getClassLoader());
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+      if (!name.equals(CLASS_NAME))
+        return super.loadClass(name, resolve);
+      synchronized (getClassLoadingLock(name)) {
+        Class<?> clazz = findLoadedClass(name);
+        return clazz == null ? findClass(name) : clazz;
+      }
+    }
+  }
+}
@@ -0,0 +1,73 @@
+package dev.sarek.benchmark;
+
+import dev.sarek.agent.aspect.InstanceMethodAroundAdvice;
+import dev.sarek.agent.aspect.Weaver;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import static net.bytebuddy.matcher.ElementMatchers.*;
+
+/**
+ * Registers and unregisters a weaver for a whole package (about 100 classes from Commons Math, a JMH dependency not
+ * used while benchmarking), i.e. all of its classes are retransformed twice, with or without precomputing their
+ * transformed class files in parallel. Only unregistering benefits from precomputation, because it needs the original
+ * class files passed by the JVM when registering. With precomputation, the work done during the second retransformation
+ * itself should shrink, while its total time should shrink with the number of available processors.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParallelPrecomputationBenchmark {
+  private static final String PACKAGE_NAME = "org.apache.commons.math3.linear.";
+
+  @Param({ "false", "true" })
+  private boolean precomputeInParallel;
+
+  private Weaver calculatorWeaver;
+
+  @Setup
+  public void setUp() throws Exception {
+    // Keep the Sarek transformer installed between benchmark iterations, and load package classes so they can be
+    // retransformed
+    calculatorWeaver = Weaver
+      .forTypes(is(Calculator.class))
+      .addAdvice(named("add"), new InstanceMethodAroundAdvice(null, null))
+      .build();
+    File benchmarkJar = new File(getClass().getProtectionDomain().getCodeSource().getLocation().toURI());
+    String packagePath = PACKAGE_NAME.replace('.', '/');
+    try (JarFile jarFile = new JarFile(benchmarkJar)) {
+      Enumeration<JarEntry> entries = jarFile.entries();
+      while (entries.hasMoreElements()) {
+        String entryName = entries.nextElement().getName();
+        if (entryName.startsWith(packagePath) && entryName.endsWith(".class")) {
+          String className = entryName.substring(0, entryName.length() - ".class".length()).replace('/', '.');
+          Class.forName(className, false, getClass().getClassLoader());
+        }
+      }
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    calculatorWeaver.unregisterTransformer();
+  }
+
+  @Benchmark
+  public Weaver registerAndUnregister() {
+    Weaver weaver = Weaver
+      .forTypes(nameStartsWith(PACKAGE_NAME).and(not(isInterface())))
+      .addAdvice(any(), new InstanceMethodAroundAdvice(null, null))
+      .precomputeInParallel(precomputeInParallel)
+      .build();
+    weaver.unregisterTransformer();
+    return weaver;
+  }
+}
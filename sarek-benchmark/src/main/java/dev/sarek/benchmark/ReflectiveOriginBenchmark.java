@@ -0,0 +1,98 @@
+package dev.sarek.benchmark;
+
+import dev.sarek.agent.aspect.ConstructorAroundAdvice;
+import dev.sarek.agent.aspect.InstanceMethodAroundAdvice;
+import dev.sarek.agent.aspect.MethodIdRegistry;
+import dev.sarek.agent.aspect.Weaver;
+import net.bytebuddy.description.method.MethodDescription;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import static net.bytebuddy.matcher.ElementMatchers.*;
+
+/**
+ * Compares the cost of obtaining the reflective {@link Method} or {@link Constructor} instance passed on to around
+ * advices:
+ * <ul>
+ *   <li>
+ *     {@code reflective*}: lookup via {@link Class#getDeclaredMethod(String, Class[])} or
+ *     {@link Class#getDeclaredConstructor(Class[])}, which is what {@code @Advice.Origin Method} and
+ *     {@code @Advice.Origin Constructor} parameters compile to, i.e. what instance method and constructor aspects used
+ *     to do on each advised call
+ *   </li>
+ *   <li>
+ *     {@code cached*}: lookup via {@link MethodIdRegistry}, which is what instance method and constructor aspects do
+ *     now
+ *   </li>
+ *   <li>
+ *     {@code advised*}: end-to-end cost of an advised instance method or constructor call, including the lookup
+ *   </li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReflectiveOriginBenchmark {
+  private Weaver weaver;
+  private Calculator target;
+  private int methodId;
+  private int constructorId;
+
+  @Setup
+  public void setUp() throws NoSuchMethodException {
+    target = new Calculator();
+    weaver = Weaver
+      .forTypes(is(Calculator.class))
+      .addAdvice(named("add"), new InstanceMethodAroundAdvice(null, null))
+      .addAdvice(isConstructor(), new ConstructorAroundAdvice(null, null))
+      .addTargets(target, Calculator.class)
+      .build();
+    methodId = MethodIdRegistry.getId(
+      new MethodDescription.ForLoadedMethod(Calculator.class.getDeclaredMethod("add", int.class, int.class))
+    );
+    constructorId = MethodIdRegistry.getId(
+      new MethodDescription.ForLoadedConstructor(Calculator.class.getDeclaredConstructor())
+    );
+  }
+
+  @TearDown
+  public void tearDown() {
+    weaver.unregisterTransformer();
+  }
+
+  @Benchmark
+  public Method reflectiveMethod() throws NoSuchMethodException {
+    return Calculator.class.getDeclaredMethod("add", int.class, int.class);
+  }
+
+  @Benchmark
+  public Method cachedMethod() {
+    return MethodIdRegistry.getMethod(Calculator.class, methodId);
+  }
+
+  @Benchmark
+  public Constructor<?> reflectiveConstructor() throws NoSuchMethodException {
+    return Calculator.class.getDeclaredConstructor();
+  }
+
+  @Benchmark
+  public Constructor<?> cachedConstructor() {
+    return MethodIdRegistry.getConstructor(Calculator.class, constructorId);
+  }
+
+  @Benchmark
+  public int advisedMethod() {
+    return target.add(1, 2);
+  }
+
+  @Benchmark
+  public Calculator advisedConstructor() {
+    return new Calculator();
+  }
+}
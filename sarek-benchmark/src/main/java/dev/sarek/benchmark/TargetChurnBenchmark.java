@@ -0,0 +1,72 @@
+package dev.sarek.benchmark;
+
+import dev.sarek.agent.aspect.Aspect;
+import dev.sarek.agent.aspect.InstanceMethodAroundAdvice;
+import dev.sarek.agent.aspect.Weaver;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static net.bytebuddy.matcher.ElementMatchers.is;
+import static net.bytebuddy.matcher.ElementMatchers.named;
+
+/**
+ * Registers a new short-lived target per invocation without ever removing it, calls an advised method on it and
+ * drops it. After each iteration, the number of keys in the advice registry and the used heap after a full GC are
+ * printed.
+ * <ul>
+ *   <li>
+ *     {@code weakTargets = false}: the weaver keeps all targets alive, i.e. registry size and heap grow with each
+ *     iteration
+ *   </li>
+ *   <li>
+ *     {@code weakTargets = true}: dead targets are dropped automatically, i.e. registry size and heap stay flat
+ *   </li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = { "-Xmx1g" })
+@State(Scope.Benchmark)
+public class TargetChurnBenchmark {
+  @Param({ "false", "true" })
+  private boolean weakTargets;
+
+  private Weaver weaver;
+
+  @Setup
+  public void setUp() {
+    weaver = Weaver
+      .forTypes(is(Calculator.class))
+      .addAdvice(named("add"), new InstanceMethodAroundAdvice(null, null))
+      .weakTargets(weakTargets)
+      .build();
+  }
+
+  @TearDown(Level.Iteration)
+  public void printFootprint() throws InterruptedException {
+    System.gc();
+    // Cleared references are enqueued asynchronously, give the reference handler thread some time
+    Thread.sleep(200);
+    Runtime runtime = Runtime.getRuntime();
+    System.out.printf(
+      "%nregistered targets: %d, used heap: %d MB%n",
+      Aspect.adviceRegistry.size(),
+      (runtime.totalMemory() - runtime.freeMemory()) / 1024 / 1024
+    );
+  }
+
+  @TearDown
+  public void tearDown() {
+    weaver.unregisterTransformer();
+  }
+
+  @Benchmark
+  public int addTargetAndCall() {
+    Calculator target = new Calculator();
+    weaver.addTarget(target);
+    return target.add(1, 2);
+  }
+}
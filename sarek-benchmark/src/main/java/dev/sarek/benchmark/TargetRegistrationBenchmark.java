@@ -0,0 +1,54 @@
+package dev.sarek.benchmark;
+
+import dev.sarek.agent.aspect.InstanceMethodAroundAdvice;
+import dev.sarek.agent.aspect.Weaver;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static net.bytebuddy.matcher.ElementMatchers.is;
+import static net.bytebuddy.matcher.ElementMatchers.named;
+
+/**
+ * Registers and then unregisters a large number of targets on a single weaver, one at a time. Each target is
+ * associated with the same advice, so with constant-time registry operations total time should grow linearly with the
+ * number of targets, e.g. 10^6 targets should take roughly ten times as long as 10^5 targets.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = { "-Xmx2g" })
+@State(Scope.Benchmark)
+public class TargetRegistrationBenchmark {
+  @Param({ "100000", "1000000" })
+  private int targetCount;
+
+  private Weaver weaver;
+  private Calculator[] targets;
+
+  @Setup
+  public void setUp() {
+    weaver = Weaver
+      .forTypes(is(Calculator.class))
+      .addAdvice(named("add"), new InstanceMethodAroundAdvice(null, null))
+      .build();
+    targets = new Calculator[targetCount];
+    for (int i = 0; i < targetCount; i++)
+      targets[i] = new Calculator();
+  }
+
+  @TearDown
+  public void tearDown() {
+    weaver.unregisterTransformer();
+  }
+
+  @Benchmark
+  public Weaver addAndRemoveTargets() {
+    for (Calculator target : targets)
+      weaver.addTarget(target);
+    for (Calculator target : targets)
+      weaver.removeTarget(target);
+    return weaver;
+  }
+}
@@ -0,0 +1,39 @@
+package dev.sarek.benchmark;
+
+import dev.sarek.agent.aspect.InstanceMethodAroundAdvice;
+import dev.sarek.agent.aspect.Weaver;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static net.bytebuddy.matcher.ElementMatchers.is;
+import static net.bytebuddy.matcher.ElementMatchers.named;
+
+/**
+ * Registers and unregisters a weaver for a single class, which includes finding and retransforming the loaded classes
+ * matched by the weaver. Without a discovery hint the weaver's type matcher is evaluated against all loaded classes,
+ * with {@link Weaver.Builder#discoverHierarchyOf(Class[])} only against the class hierarchy of {@link Calculator}. So
+ * in the latter case, cost should not depend on the number of classes loaded in the JVM.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WeaverRegistrationBenchmark {
+  @Param({ "false", "true" })
+  private boolean discoverHierarchy;
+
+  @Benchmark
+  public Weaver registerAndUnregister() {
+    Weaver.Builder weaverBuilder = Weaver
+      .forTypes(is(Calculator.class))
+      .addAdvice(named("add"), new InstanceMethodAroundAdvice(null, null));
+    if (discoverHierarchy)
+      weaverBuilder.discoverHierarchyOf(Calculator.class);
+    Weaver weaver = weaverBuilder.build();
+    weaver.unregisterTransformer();
+    return weaver;
+  }
+}
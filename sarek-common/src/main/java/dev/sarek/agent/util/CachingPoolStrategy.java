@@ -0,0 +1,138 @@
+package dev.sarek.agent.util;
+
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.dynamic.ClassFileLocator;
+import net.bytebuddy.pool.TypePool;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pool strategy sharing type descriptions between all Sarek agent builders, so that e.g. JRE or application types
+ * resolved when weaving one class (super types, frame computation) need not be parsed again when weaving the next one
+ * or when retransforming the same class again.
+ * <p>
+ * There is one cache per class loader. Class loaders are referenced weakly, i.e. the cache for a class loader is
+ * evicted when the class loader is garbage-collected. Each cache is bounded, evicting the least recently used type
+ * descriptions first. Because type descriptions from a type pool reference the pool's class file locator, use this
+ * strategy together with {@link AgentBuilder.LocationStrategy.ForClassLoader#WEAK}, otherwise cached type descriptions
+ * keep their class loaders alive.
+ * <p>
+ * The type being transformed is never cached, because its class file as passed to a transformer can differ between
+ * transformers and retransformations, e.g. when another transformer has changed its modifiers. Its description is only
+ * kept for the duration of a single transformation. In order to know the type being transformed, use this strategy
+ * together with {@link #CLASS_FILE_BUFFER_STRATEGY}, otherwise the type being transformed is cached like any other type.
+ */
+public class CachingPoolStrategy extends AgentBuilder.PoolStrategy.WithTypePoolCache {
+  /**
+   * Shared instance to be used by all Sarek agent builders
+   */
+  public static final CachingPoolStrategy INSTANCE = new CachingPoolStrategy(TypePool.Default.ReaderMode.FAST, 1024);
+
+  // Name of the type being transformed, from resolving its class file until creating its type pool
+  private static final ThreadLocal<String> instrumentedTypeName = new ThreadLocal<>();
+
+  /**
+   * Class file buffer strategy retaining the class file being transformed, like
+   * {@link AgentBuilder.ClassFileBufferStrategy.Default#RETAINING}, and telling the caching pool strategy which type is
+   * being transformed
+   */
+  public static final AgentBuilder.ClassFileBufferStrategy CLASS_FILE_BUFFER_STRATEGY =
+    (name, binaryRepresentation, classLoader, module, protectionDomain) -> {
+      // ByteBuddy creates the type pool for the transformation right after resolving the class file
+      instrumentedTypeName.set(name);
+      return ClassFileLocator.Simple.of(name, binaryRepresentation);
+    };
+
+  private final int maxSize;
+  private final WeakIdentityMap<ClassLoader, TypePool.CacheProvider> cacheProviders = new WeakIdentityMap<>();
+
+  /**
+   * @param readerMode reader mode for parsing class files
+   * @param maxSize    maximum number of type descriptions cached per class loader
+   */
+  public CachingPoolStrategy(TypePool.Default.ReaderMode readerMode, int maxSize) {
+    super(readerMode);
+    this.maxSize = maxSize;
+  }
+
+  @Override
+  public TypePool typePool(ClassFileLocator classFileLocator, ClassLoader classLoader) {
+    String typeName = instrumentedTypeName.get();
+    if (typeName == null)
+      return super.typePool(classFileLocator, classLoader);
+    instrumentedTypeName.remove();
+    return new TypePool.Default.WithLazyResolution(
+      new TransformationCacheProvider(locate(classLoader), typeName), classFileLocator, readerMode
+    );
+  }
+
+  @Override
+  protected TypePool.CacheProvider locate(ClassLoader classLoader) {
+    return cacheProviders.computeIfAbsent(classLoader, loader -> new BoundedCacheProvider(maxSize));
+  }
+
+  private static class BoundedCacheProvider implements TypePool.CacheProvider {
+    // Guarded by 'this'
+    private final Map<String, TypePool.Resolution> resolutions;
+
+    private BoundedCacheProvider(int maxSize) {
+      resolutions = new LinkedHashMap<String, TypePool.Resolution>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TypePool.Resolution> eldest) {
+          return size() > maxSize;
+        }
+      };
+    }
+
+    @Override
+    public synchronized TypePool.Resolution find(String name) {
+      return resolutions.get(name);
+    }
+
+    @Override
+    public synchronized TypePool.Resolution register(String name, TypePool.Resolution resolution) {
+      TypePool.Resolution cachedResolution = resolutions.putIfAbsent(name, resolution);
+      return cachedResolution == null ? resolution : cachedResolution;
+    }
+
+    @Override
+    public synchronized void clear() {
+      resolutions.clear();
+    }
+  }
+
+  /**
+   * Cache provider for a single transformation, keeping the type being transformed out of the shared cache. Type pools
+   * created for a transformation are only used by the transforming thread.
+   */
+  private static class TransformationCacheProvider implements TypePool.CacheProvider {
+    private final TypePool.CacheProvider sharedCacheProvider;
+    private final String instrumentedTypeName;
+    private TypePool.Resolution instrumentedTypeResolution;
+
+    private TransformationCacheProvider(TypePool.CacheProvider sharedCacheProvider, String instrumentedTypeName) {
+      this.sharedCacheProvider = sharedCacheProvider;
+      this.instrumentedTypeName = instrumentedTypeName;
+    }
+
+    @Override
+    public TypePool.Resolution find(String name) {
+      return name.equals(instrumentedTypeName) ? instrumentedTypeResolution : sharedCacheProvider.find(name);
+    }
+
+    @Override
+    public TypePool.Resolution register(String name, TypePool.Resolution resolution) {
+      if (!name.equals(instrumentedTypeName))
+        return sharedCacheProvider.register(name, resolution);
+      if (instrumentedTypeResolution == null)
+        instrumentedTypeResolution = resolution;
+      return instrumentedTypeResolution;
+    }
+
+    @Override
+    public void clear() {
+      instrumentedTypeResolution = null;
+    }
+  }
+}
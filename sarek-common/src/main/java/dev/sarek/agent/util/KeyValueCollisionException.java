@@ -0,0 +1,7 @@
+package dev.sarek.agent.util;
+
+public class KeyValueCollisionException extends RuntimeException {
+  public KeyValueCollisionException(Object key, Object value) {
+    super("key/value pair (" + key + "/" + value + ") already exists");
+  }
+}
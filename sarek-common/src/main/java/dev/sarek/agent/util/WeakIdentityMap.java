@@ -0,0 +1,254 @@
+package dev.sarek.agent.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+/**
+ * Identity-based map holding its keys weakly, i.e. entries for keys which have been garbage-collected are dropped
+ * automatically.
+ * <p>
+ * {@link #get(Object)} is lock-free and allocation-free, so it can be called from hot code paths, e.g. advice code
+ * woven into target classes. Write operations are synchronised. Stale entries are expunged during write operations.
+ * <p>
+ * The {@code null} key is supported, e.g. for the bootstrap class loader, and never expunged. {@code null} values are
+ * not supported, because {@link #get(Object)} returns {@code null} for absent keys.
+ * <p>
+ * Values are held strongly. So make sure that values do not reference their keys, otherwise the keys can never be
+ * garbage-collected.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class WeakIdentityMap<K, V> {
+  private static final int INITIAL_CAPACITY = 16;
+
+  private final ReferenceQueue<K> staleEntries = new ReferenceQueue<>();
+  // Buckets of immutable entry chains, replaced as a whole on resize. Entries are never changed except for their values.
+  private volatile AtomicReferenceArray<Entry<K, V>> table = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+  // Value for the null key, which cannot be referenced weakly
+  private volatile V nullKeyValue;
+  // Guarded by 'this', not counting the null key
+  private int size;
+
+  /**
+   * @param key key to get the value for
+   * @return value associated with the given key, {@code null} if there is none
+   */
+  public V get(K key) {
+    if (key == null)
+      return nullKeyValue;
+    AtomicReferenceArray<Entry<K, V>> table = this.table;
+    int hash = hash(key);
+    // Do not use 'getEntry', keep this method as short as possible, so it can be inlined easily
+    for (Entry<K, V> entry = table.get(indexFor(hash, table.length())); entry != null; entry = entry.next) {
+      if (entry.hash == hash && entry.get() == key)
+        return entry.value;
+    }
+    return null;
+  }
+
+  /**
+   * @param key   key to associate the value with
+   * @param value value to be associated with the key, must not be {@code null}
+   * @return value previously associated with the given key, {@code null} if there was none
+   */
+  public synchronized V put(K key, V value) {
+    if (value == null)
+      throw new NullPointerException("value must not be null");
+    if (key == null) {
+      V oldValue = nullKeyValue;
+      nullKeyValue = value;
+      return oldValue;
+    }
+    expungeStaleEntries();
+    Entry<K, V> entry = getEntry(key);
+    if (entry != null) {
+      V oldValue = entry.value;
+      entry.value = value;
+      return oldValue;
+    }
+    int hash = hash(key);
+    int index = indexFor(hash, table.length());
+    table.set(index, new Entry<>(key, hash, value, table.get(index), staleEntries));
+    if (++size > table.length() * 3 / 4)
+      resize();
+    return null;
+  }
+
+  /**
+   * Get the value associated with a key, computing and associating it first if there is none yet. The value is
+   * computed at most once per key, under the map's lock, so keep the mapping function short. Looking up an existing
+   * value is lock-free.
+   *
+   * @param key             key to get the value for
+   * @param mappingFunction function computing the value for a new key, must not return {@code null}
+   * @return value associated with the given key
+   */
+  public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+    V value = get(key);
+    if (value != null)
+      return value;
+    synchronized (this) {
+      // Another thread might have added the value in the meantime
+      value = get(key);
+      if (value == null) {
+        value = mappingFunction.apply(key);
+        put(key, value);
+      }
+      return value;
+    }
+  }
+
+  /**
+   * @param key key to be removed
+   * @return value previously associated with the given key, {@code null} if there was none
+   */
+  public synchronized V remove(K key) {
+    if (key == null) {
+      V oldValue = nullKeyValue;
+      nullKeyValue = null;
+      return oldValue;
+    }
+    expungeStaleEntries();
+    Entry<K, V> entry = getEntry(key);
+    if (entry == null)
+      return null;
+    removeEntry(entry);
+    return entry.value;
+  }
+
+  /**
+   * @return snapshot of keys which have not been garbage-collected yet, including {@code null} if present
+   */
+  public synchronized List<K> getKeys() {
+    expungeStaleEntries();
+    List<K> keys = new IdentityArrayList<>();
+    if (nullKeyValue != null)
+      keys.add(null);
+    for (int i = 0; i < table.length(); i++) {
+      for (Entry<K, V> entry = table.get(i); entry != null; entry = entry.next) {
+        K key = entry.get();
+        if (key != null)
+          keys.add(key);
+      }
+    }
+    return keys;
+  }
+
+  /**
+   * @return snapshot of values for keys which have not been garbage-collected yet
+   */
+  public synchronized List<V> values() {
+    expungeStaleEntries();
+    List<V> values = new ArrayList<>();
+    if (nullKeyValue != null)
+      values.add(nullKeyValue);
+    for (int i = 0; i < table.length(); i++) {
+      for (Entry<K, V> entry = table.get(i); entry != null; entry = entry.next) {
+        if (entry.get() != null)
+          values.add(entry.value);
+      }
+    }
+    return values;
+  }
+
+  /**
+   * @return number of keys, possibly including a few keys which have been garbage-collected but not expunged yet
+   */
+  public synchronized int size() {
+    expungeStaleEntries();
+    return nullKeyValue == null ? size : size + 1;
+  }
+
+  private static int hash(Object key) {
+    int hash = System.identityHashCode(key);
+    return hash ^ (hash >>> 16);
+  }
+
+  private static int indexFor(int hash, int length) {
+    return hash & (length - 1);
+  }
+
+  private Entry<K, V> getEntry(K key) {
+    int hash = hash(key);
+    for (Entry<K, V> entry = table.get(indexFor(hash, table.length())); entry != null; entry = entry.next) {
+      if (entry.hash == hash && entry.get() == key)
+        return entry;
+    }
+    return null;
+  }
+
+  private void removeEntry(Entry<K, V> entry) {
+    int index = indexFor(entry.hash, table.length());
+    Entry<K, V> head = table.get(index);
+    // Entry might have been dropped already, e.g. by 'resize' or while removing another entry from the same chain
+    Entry<K, V> current = head;
+    while (current != null && current != entry)
+      current = current.next;
+    if (current == null)
+      return;
+    table.set(index, copyWithout(head, entry));
+  }
+
+  /**
+   * Entries are immutable apart from their values, so in order to remove an entry from a chain, all entries in front of
+   * it need to be copied. Stale entries found while copying are dropped.
+   */
+  private Entry<K, V> copyWithout(Entry<K, V> chain, Entry<K, V> entry) {
+    if (chain == entry) {
+      size--;
+      return entry.next;
+    }
+    Entry<K, V> next = copyWithout(chain.next, entry);
+    K key = chain.get();
+    if (key == null) {
+      size--;
+      return next;
+    }
+    return new Entry<>(key, chain.hash, chain.value, next, staleEntries);
+  }
+
+  private void resize() {
+    AtomicReferenceArray<Entry<K, V>> oldTable = table;
+    AtomicReferenceArray<Entry<K, V>> newTable = new AtomicReferenceArray<>(oldTable.length() * 2);
+    int newSize = 0;
+    for (int i = 0; i < oldTable.length(); i++) {
+      for (Entry<K, V> entry = oldTable.get(i); entry != null; entry = entry.next) {
+        K key = entry.get();
+        if (key == null)
+          continue;
+        int index = indexFor(entry.hash, newTable.length());
+        newTable.set(index, new Entry<>(key, entry.hash, entry.value, newTable.get(index), staleEntries));
+        newSize++;
+      }
+    }
+    size = newSize;
+    table = newTable;
+  }
+
+  @SuppressWarnings("unchecked")
+  private void expungeStaleEntries() {
+    Reference<? extends K> staleEntry;
+    while ((staleEntry = staleEntries.poll()) != null)
+      removeEntry((Entry<K, V>) staleEntry);
+  }
+
+  private static class Entry<K, V> extends WeakReference<K> {
+    private final int hash;
+    private final Entry<K, V> next;
+    private volatile V value;
+
+    private Entry(K key, int hash, V value, Entry<K, V> next, ReferenceQueue<K> queue) {
+      super(key, queue);
+      this.hash = hash;
+      this.value = value;
+      this.next = next;
+    }
+  }
+
+}
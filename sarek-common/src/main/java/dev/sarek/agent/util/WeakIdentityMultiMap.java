@@ -0,0 +1,81 @@
+package dev.sarek.agent.util;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Identity-based multimap holding its keys weakly, i.e. entries for keys which have been garbage-collected are dropped
+ * automatically. See {@link WeakIdentityMap} for details about concurrency and garbage collection.
+ * <p>
+ * Read operations like {@link #getValues(Object)} are lock-free and allocation-free, so they can be called from hot
+ * code paths, e.g. advice code woven into target classes. Write operations are synchronised.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class WeakIdentityMultiMap<K, V> {
+  // Values are immutable lists, replaced as a whole on each change
+  private final WeakIdentityMap<K, List<V>> map = new WeakIdentityMap<>();
+
+  public synchronized WeakIdentityMultiMap<K, V> add(K key, V value) {
+    return addAll(key, Collections.singletonList(value));
+  }
+
+  public synchronized WeakIdentityMultiMap<K, V> addAll(K key, Collection<V> values) {
+    List<V> oldValues = getValues(key);
+    List<V> newValues = new IdentityArrayList<>(oldValues);
+    try {
+      for (V value : values) {
+        if (newValues.contains(value))
+          throw new KeyValueCollisionException(key, value);
+        newValues.add(value);
+      }
+    }
+    finally {
+      // Publish changes made before a possible collision, just like a sequence of single 'add' calls would
+      if (newValues.size() > oldValues.size())
+        map.put(key, Collections.unmodifiableList(newValues));
+    }
+    return this;
+  }
+
+  public synchronized WeakIdentityMultiMap<K, V> remove(K key, V value) {
+    return removeAll(key, Collections.singletonList(value));
+  }
+
+  public synchronized WeakIdentityMultiMap<K, V> removeAll(K key, Collection<V> values) {
+    List<V> oldValues = getValues(key);
+    List<V> newValues = new IdentityArrayList<>(oldValues);
+    newValues.removeAll(values);
+    if (newValues.isEmpty())
+      map.remove(key);
+    else if (newValues.size() < oldValues.size())
+      map.put(key, Collections.unmodifiableList(newValues));
+    return this;
+  }
+
+  /**
+   * @param key key to get values for
+   * @return immutable snapshot of values associated with the given key; later changes to this map are not reflected
+   */
+  public List<V> getValues(K key) {
+    List<V> values = map.get(key);
+    return values == null ? Collections.emptyList() : values;
+  }
+
+  /**
+   * @return snapshot of keys which have not been garbage-collected yet
+   */
+  public List<K> getKeys() {
+    return map.getKeys();
+  }
+
+  /**
+   * @return number of keys, possibly including a few keys which have been garbage-collected but not expunged yet
+   */
+  public int size() {
+    return map.size();
+  }
+
+}
@@ -0,0 +1,51 @@
+package dev.sarek.agent.util;
+
+import java.util.List;
+
+/**
+ * Identity-based set holding its elements weakly, i.e. elements which have been garbage-collected are dropped
+ * automatically. See {@link WeakIdentityMap} for details about concurrency and garbage collection.
+ * <p>
+ * Adding, removing and checking an element run in constant time.
+ *
+ * @param <E> element type
+ */
+public class WeakIdentitySet<E> {
+  private final WeakIdentityMap<E, Boolean> map = new WeakIdentityMap<>();
+
+  /**
+   * @param element element to be added
+   * @return true if the element was not contained in this set before
+   */
+  public boolean add(E element) {
+    return map.put(element, Boolean.TRUE) == null;
+  }
+
+  /**
+   * @param element element to be removed
+   * @return true if the element was contained in this set before
+   */
+  public boolean remove(E element) {
+    return map.remove(element) != null;
+  }
+
+  public boolean contains(E element) {
+    return map.get(element) != null;
+  }
+
+  /**
+   * @return snapshot of elements which have not been garbage-collected yet
+   */
+  public List<E> getElements() {
+    return map.getKeys();
+  }
+
+  /**
+   * @return number of elements, possibly including a few elements which have been garbage-collected but not expunged
+   * yet
+   */
+  public int size() {
+    return map.size();
+  }
+
+}
@@ -0,0 +1,80 @@
+package dev.sarek.agent.util;
+
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class WeakIdentityMapTest {
+  @Test
+  public void putGetRemove() {
+    WeakIdentityMap<Object, String> map = new WeakIdentityMap<>();
+    // Equal, but not identical keys
+    String key1 = new String("key");
+    String key2 = new String("key");
+
+    assertNull(map.put(key1, "a"));
+    assertNull(map.put(key2, "b"));
+    assertEquals("a", map.put(key1, "c"));
+    assertEquals("c", map.get(key1));
+    assertEquals("b", map.get(key2));
+    assertEquals(2, map.size());
+
+    assertEquals("b", map.remove(key2));
+    assertNull(map.remove(key2));
+    assertNull(map.get(key2));
+    assertEquals(Arrays.asList(key1), map.getKeys());
+    assertEquals(Arrays.asList("c"), map.values());
+  }
+
+  @Test
+  public void nullKey() {
+    WeakIdentityMap<Object, String> map = new WeakIdentityMap<>();
+    assertNull(map.get(null));
+    map.put(null, "bootstrap");
+    assertEquals("bootstrap", map.get(null));
+    assertEquals(1, map.size());
+    assertEquals(Arrays.asList((Object) null), map.getKeys());
+    assertEquals("bootstrap", map.remove(null));
+    assertEquals(0, map.size());
+  }
+
+  @Test(expected = NullPointerException.class)
+  public void nullValue() {
+    new WeakIdentityMap<>().put(new Object(), null);
+  }
+
+  @Test
+  public void computeIfAbsent() {
+    WeakIdentityMap<Object, String> map = new WeakIdentityMap<>();
+    Object key = new Object();
+    AtomicInteger calls = new AtomicInteger();
+    assertEquals("a0", map.computeIfAbsent(key, k -> "a" + calls.getAndIncrement()));
+    assertEquals("a0", map.computeIfAbsent(key, k -> "a" + calls.getAndIncrement()));
+    assertEquals("b1", map.computeIfAbsent(null, k -> "b" + calls.getAndIncrement()));
+    assertEquals(2, calls.get());
+  }
+
+  @Test
+  public void expungeAfterGarbageCollection() throws InterruptedException {
+    WeakIdentityMap<Object, Integer> map = new WeakIdentityMap<>();
+    Object survivor = new Object();
+    map.put(survivor, -1);
+    Object key = new Object();
+    map.put(key, 0);
+    WeakReference<Object> keyReference = new WeakReference<>(key);
+    assertEquals(2, map.size());
+
+    key = null;
+    for (int i = 0; i < 50 && (keyReference.get() != null || map.size() > 1); i++) {
+      System.gc();
+      Thread.sleep(20);
+    }
+    assertNull(keyReference.get());
+    assertEquals(1, map.size());
+    assertEquals(Arrays.asList(-1), map.values());
+  }
+}
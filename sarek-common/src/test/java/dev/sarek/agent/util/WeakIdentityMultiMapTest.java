@@ -0,0 +1,155 @@
+package dev.sarek.agent.util;
+
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class WeakIdentityMultiMapTest {
+  @Test
+  public void addRemoveGetValues() {
+    WeakIdentityMultiMap<Object, String> map = new WeakIdentityMultiMap<>();
+    // Equal, but not identical keys
+    String key1 = new String("key");
+    String key2 = new String("key");
+
+    map.add(key1, "a").add(key1, "b").addAll(key2, Arrays.asList("c", "d"));
+    assertEquals(Arrays.asList("a", "b"), map.getValues(key1));
+    assertEquals(Arrays.asList("c", "d"), map.getValues(key2));
+    assertEquals(2, map.size());
+
+    map.remove(key1, "a").removeAll(key2, Arrays.asList("c", "d"));
+    assertEquals(Arrays.asList("b"), map.getValues(key1));
+    assertTrue(map.getValues(key2).isEmpty());
+    assertEquals(1, map.size());
+
+    // Removing unknown keys or values does nothing
+    map.remove(key2, "x").remove(key1, "x");
+    assertEquals(Arrays.asList("b"), map.getValues(key1));
+    assertTrue(map.getValues(null).isEmpty());
+  }
+
+  @Test
+  public void valuesAreSnapshots() {
+    WeakIdentityMultiMap<Object, String> map = new WeakIdentityMultiMap<>();
+    Object key = new Object();
+    map.add(key, "a");
+    List<String> values = map.getValues(key);
+    map.add(key, "b");
+    assertEquals(Arrays.asList("a"), values);
+    assertEquals(Arrays.asList("a", "b"), map.getValues(key));
+  }
+
+  @Test
+  public void keyValueCollision() {
+    WeakIdentityMultiMap<Object, String> map = new WeakIdentityMultiMap<>();
+    Object key = new Object();
+    String value = "b";
+    map.add(key, "a");
+    try {
+      map.addAll(key, Arrays.asList(value, "c", value, "d"));
+      fail("expected collision");
+    }
+    catch (KeyValueCollisionException expected) { }
+    // Values added before the collision stay in place
+    assertEquals(Arrays.asList("a", "b", "c"), map.getValues(key));
+  }
+
+  @Test
+  public void addRemoveGetValuesUnderResize() {
+    WeakIdentityMultiMap<Object, Integer> map = new WeakIdentityMultiMap<>();
+    List<Object> keys = new ArrayList<>();
+    for (int i = 0; i < 10_000; i++) {
+      Object key = new Object();
+      keys.add(key);
+      map.add(key, i);
+    }
+    assertEquals(keys.size(), map.size());
+    assertEquals(keys.size(), map.getKeys().size());
+    for (int i = 0; i < keys.size(); i++)
+      assertEquals(Arrays.asList(i), map.getValues(keys.get(i)));
+
+    // Remove every other key, then check that colliding chains are intact
+    for (int i = 0; i < keys.size(); i += 2)
+      map.remove(keys.get(i), i);
+    assertEquals(keys.size() / 2, map.size());
+    for (int i = 0; i < keys.size(); i++)
+      assertEquals(i % 2 == 0 ? Arrays.asList() : Arrays.asList(i), map.getValues(keys.get(i)));
+  }
+
+  @Test
+  public void expungeAfterGarbageCollection() throws InterruptedException {
+    WeakIdentityMultiMap<Object, Integer> map = new WeakIdentityMultiMap<>();
+    Object survivor = new Object();
+    map.add(survivor, -1);
+    List<Object> keys = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      Object key = new Object();
+      keys.add(key);
+      map.add(key, i);
+    }
+    WeakReference<Object> keyReference = new WeakReference<>(keys.get(0));
+    assertEquals(1001, map.size());
+
+    keys.clear();
+    for (int i = 0; i < 50 && (keyReference.get() != null || map.size() > 1); i++) {
+      System.gc();
+      Thread.sleep(20);
+    }
+    assertNull(keyReference.get());
+    assertEquals(1, map.size());
+    assertEquals(Arrays.asList(survivor), map.getKeys());
+    assertEquals(Arrays.asList(-1), map.getValues(survivor));
+  }
+
+  @Test
+  public void concurrentReaders() throws InterruptedException {
+    WeakIdentityMultiMap<Object, Integer> map = new WeakIdentityMultiMap<>();
+    // Stable keys are never changed while readers are running
+    Object[] stableKeys = new Object[100];
+    for (int i = 0; i < stableKeys.length; i++) {
+      stableKeys[i] = new Object();
+      map.add(stableKeys[i], i);
+    }
+
+    AtomicBoolean stop = new AtomicBoolean();
+    AtomicReference<String> failure = new AtomicReference<>();
+    List<Thread> readers = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      Thread reader = new Thread(() -> {
+        while (!stop.get() && failure.get() == null) {
+          for (int i = 0; i < stableKeys.length; i++) {
+            List<Integer> values = map.getValues(stableKeys[i]);
+            if (values.size() != 1 || values.get(0) != i)
+              failure.set("unexpected values for stable key #" + i + ": " + values);
+          }
+        }
+      });
+      reader.start();
+      readers.add(reader);
+    }
+
+    // Writer causes resizes and chain copies while readers are running
+    List<Object> volatileKeys = new ArrayList<>();
+    for (int i = 0; i < 20_000; i++) {
+      Object key = new Object();
+      volatileKeys.add(key);
+      map.add(key, i);
+      if (i % 3 == 0)
+        map.remove(volatileKeys.get(i / 2), i / 2);
+    }
+    stop.set(true);
+    for (Thread reader : readers)
+      reader.join();
+
+    assertNull(failure.get());
+    for (int i = 0; i < stableKeys.length; i++)
+      assertEquals(Arrays.asList(i), map.getValues(stableKeys[i]));
+  }
+}
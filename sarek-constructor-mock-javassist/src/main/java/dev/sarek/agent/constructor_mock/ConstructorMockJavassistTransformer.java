@@ -1,5 +1,6 @@
 package dev.sarek.agent.constructor_mock;
 
+import dev.sarek.agent.ClassFileCache;
 import dev.sarek.agent.Transformer;
 import javassist.*;
 import net.bytebuddy.jar.asm.*;
@@ -37,6 +38,11 @@ public class ConstructorMockJavassistTransformer implements ClassFileTransformer
   private static final String MOCK_REGISTRY = ConstructorMockRegistry.class.getName();
 
   private ClassPool classPool = ClassPool.getDefault();
+  // Persistent cache if activated via the Sarek agents' 'cache' option. Not used while logging, because hits would not
+  // be logged.
+  private final ClassFileCache classFileCache = ClassFileCache.isActive()
+    ? createClassFileCache(ClassFileCache.DEFAULT_DIRECTORY)
+    : null;
   private File configFile;
   private final Set<String> targetClasses;
 
@@ -98,33 +104,15 @@ public class ConstructorMockJavassistTransformer implements ClassFileTransformer
     if (!shouldTransform(canonicalClassName))
       return null;
 
-    CtClass targetClass;
-    try {
-      // Caveat: Do not just use 'classPool.get(className)' because we would miss previous transformations.
-      // It is necessary to really parse 'classfileBuffer'.
-      targetClass = classPool.makeClass(new ByteArrayInputStream(classfileBuffer));
-    }
-    catch (Exception e) {
-      log("ERROR: Cannot parse bytes for input class " + canonicalClassName);
-      e.printStackTrace();
-      return null;
-    }
-
-    try {
-      applyTransformations(targetClass);
-    }
-    catch (Exception e) {
-      log("ERROR: Cannot apply transformations to input class " + canonicalClassName);
-      e.printStackTrace();
-      return null;
-    }
-
     byte[] transformedBytecode;
     try {
-      transformedBytecode = targetClass.toBytecode();
+      transformedBytecode = classFileCache == null || LOG_CONSTRUCTOR_MOCK
+        ? toMockableBytecode(classfileBuffer)
+        // The injected super constructor call depends on the super class, so it is part of the cache key
+        : classFileCache.transform(classfileBuffer, getSuperCall(classfileBuffer), this::toMockableBytecode);
     }
     catch (Exception e) {
-      log("ERROR: Cannot get byte code for transformed class " + canonicalClassName);
+      log("ERROR: Cannot apply transformations to input class " + canonicalClassName);
       e.printStackTrace();
       return null;
     }
@@ -150,6 +138,41 @@ public class ConstructorMockJavassistTransformer implements ClassFileTransformer
     return transformedBytecode;
   }
 
+  private byte[] toMockableBytecode(byte[] classFile) {
+    CtClass targetClass;
+    try {
+      // Caveat: Do not just use 'classPool.get(className)' because we would miss previous transformations.
+      // It is necessary to really parse 'classfileBuffer'.
+      targetClass = classPool.makeClass(new ByteArrayInputStream(classFile));
+    }
+    catch (Exception e) {
+      throw new RuntimeException("Cannot parse bytes for input class", e);
+    }
+    try {
+      targetClass.defrost();
+      makeConstructorsMockable(targetClass);
+      return targetClass.toBytecode();
+    }
+    catch (Exception e) {
+      throw new RuntimeException("Cannot make constructors mockable for class " + targetClass.getName(), e);
+    }
+    finally {
+      targetClass.detach();
+    }
+  }
+
+  /**
+   * @param directory root directory for class file caches, e.g. {@link ClassFileCache#DEFAULT_DIRECTORY}
+   * @return class file cache for constructor mock transformations
+   */
+  private static ClassFileCache createClassFileCache(Path directory) {
+    // CtClass and the ASM class reader stand in for the Javassist and ASM (shaded into ByteBuddy) versions respectively
+    return new ClassFileCache(
+      directory, "constructor-mock-javassist",
+      ConstructorMockJavassistTransformer.class, CtClass.class, ClassReader.class
+    );
+  }
+
   private byte[] repairStackMapUsingASM(String className, byte[] transformedBytecode) {
     if (DUMP_CLASS_FILES) {
       Path path = new File(DUMP_CLASS_BASE_DIR + "/" + className + ".unrepaired.class").toPath();
@@ -223,6 +246,12 @@ public class ConstructorMockJavassistTransformer implements ClassFileTransformer
     }
   }
 
+  private String getSuperCall(byte[] classFile) throws NotFoundException {
+    // Only read the class file header, so cache hits do not need to parse the whole class file
+    String superName = new ClassReader(classFile).getSuperName();
+    return superName == null ? "" : getSuperCall(classPool.get(superName.replace('/', '.')));
+  }
+
   private String getSuperCall(CtClass superClass) throws NotFoundException {
     // Get declared non-private constructors (we cannot call private ones via 'super()')
     // TODO: Maybe transform private constructors, too -> '.getInstance()' methods in typical singleton classes!
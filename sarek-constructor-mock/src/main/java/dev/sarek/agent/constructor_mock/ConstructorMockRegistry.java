@@ -1,12 +1,11 @@
 package dev.sarek.agent.constructor_mock;
 
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
@@ -35,7 +34,16 @@ public class ConstructorMockRegistry {
   //   loader specific, the latter would apply to all class loaders. Maybe there are situations in which only the class
   //   name is known when at mock configuration time because the actual target class is loaded later by another class
   //   loader.
-  private static final Map<Class<?>, BlockingQueue<Object>> registry = new HashMap<>();
+  //
+  // Mock instance queue per target class, null if constructor mocking is inactive. The queue is attached to the target
+  // class itself, i.e. the registry does not prevent target classes from being unloaded.
+  private static final ClassValue<AtomicReference<BlockingQueue<Object>>> registry =
+    new ClassValue<AtomicReference<BlockingQueue<Object>>>() {
+      @Override
+      protected AtomicReference<BlockingQueue<Object>> computeValue(Class<?> type) {
+        return new AtomicReference<>();
+      }
+    };
   private static final ClassContextExposingSecurityManager securityManager = new ClassContextExposingSecurityManager();
 
   /**
@@ -45,7 +53,7 @@ public class ConstructorMockRegistry {
    * @return constructor mocking state for given class
    */
   public static boolean isMock(Class<?> targetClass) {
-    return registry.containsKey(targetClass);
+    return registry.get(targetClass).get() != null;
   }
 
   /**
@@ -56,10 +64,7 @@ public class ConstructorMockRegistry {
    * @return {@code true} if constructor mocking for given class was not active before; {@code false} otherwise
    */
   public static boolean activate(Class<?> targetClass) {
-    if (isMock(targetClass))
-      return false;
-    registry.put(targetClass, new LinkedBlockingQueue<>());
-    return true;
+    return registry.get(targetClass).compareAndSet(null, new LinkedBlockingQueue<>());
   }
 
   /**
@@ -68,7 +73,7 @@ public class ConstructorMockRegistry {
    * @param targetClass class to be unregistered as a constructor mocking target
    */
   public static void deactivate(Class<?> targetClass) {
-    registry.remove(targetClass);
+    registry.get(targetClass).set(null);
   }
 
   /**
@@ -135,8 +140,9 @@ public class ConstructorMockRegistry {
    * @return mock instance, if available in the queue; {@code null} otherwise
    */
   public static Object pollMockInstance(Class<?> targetClass) {
-    return isMock(targetClass)
-      ? registry.get(targetClass).poll()
+    BlockingQueue<Object> mockInstances = registry.get(targetClass).get();
+    return mockInstances != null
+      ? mockInstances.poll()
       : null;
   }
 
@@ -156,8 +162,9 @@ public class ConstructorMockRegistry {
   public static Object pollMockInstance(Class<?> targetClass, int timeoutMillis)
     throws InterruptedException
   {
-    return isMock(targetClass)
-      ? registry.get(targetClass).poll(timeoutMillis, MILLISECONDS)
+    BlockingQueue<Object> mockInstances = registry.get(targetClass).get();
+    return mockInstances != null
+      ? mockInstances.poll(timeoutMillis, MILLISECONDS)
       : null;
   }
 
@@ -177,7 +184,7 @@ public class ConstructorMockRegistry {
   public static void registerMockInstance(Object mockInstance) {
     // Caveat: Do not log anything here, especially not mock objects with possibly stubbed toString methods. Otherwise
     // you might see strange exceptions in then failing tests.
-    registry.get(mockInstance.getClass()).add(mockInstance);
+    registry.get(mockInstance.getClass()).get().add(mockInstance);
     // TODO:
     //   - add 'unregister' method?
     //   - make registration optional (default: off) via fluent mock API?
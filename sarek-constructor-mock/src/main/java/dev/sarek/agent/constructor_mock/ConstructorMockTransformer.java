@@ -1,5 +1,7 @@
 package dev.sarek.agent.constructor_mock;
 
+import dev.sarek.agent.WeavingTransaction;
+import dev.sarek.agent.util.CachingPoolStrategy;
 import dev.sarek.agent.util.TransformedClassFileWriter;
 import net.bytebuddy.agent.builder.AgentBuilder;
 import net.bytebuddy.agent.builder.ResettableClassFileTransformer;
@@ -11,9 +13,7 @@ import net.bytebuddy.implementation.Implementation;
 import net.bytebuddy.jar.asm.MethodVisitor;
 import net.bytebuddy.pool.TypePool;
 
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.*;
 
 import static dev.sarek.agent.Agent.getInstrumentation;
 import static net.bytebuddy.agent.builder.AgentBuilder.RedefinitionStrategy.RETRANSFORMATION;
@@ -23,6 +23,8 @@ import static net.bytebuddy.matcher.ElementMatchers.*;
 public class ConstructorMockTransformer<T> implements AutoCloseable {
   private ResettableClassFileTransformer transformer;
   private boolean resetTransformationOnClose;
+  // Loaded classes transformed upon installation, i.e. the target class and its relevant super classes
+  private final List<Class<?>> transformedClasses = new ArrayList<>();
 
   public static class Builder<T> {
     private final Class<T> targetClass;
@@ -68,7 +70,14 @@ public class ConstructorMockTransformer<T> implements AutoCloseable {
     AgentBuilder agentBuilder = new AgentBuilder.Default()
       .disableClassFormatChanges()
       .ignore(none())
+      // Share parsed type descriptions with other Sarek transformers, except for the type being transformed. Locate
+      // class files via weak class loader references, so cached type descriptions do not keep class loaders alive.
+      .with(CachingPoolStrategy.INSTANCE)
+      .with(CachingPoolStrategy.CLASS_FILE_BUFFER_STRATEGY)
+      .with(AgentBuilder.LocationStrategy.ForClassLoader.WEAK)
       .with(RETRANSFORMATION)
+      // The classes to be retransformed are known, see below. No need to scan all loaded classes.
+      .with(new AgentBuilder.RedefinitionStrategy.DiscoveryStrategy.Explicit())
       .with(AgentBuilder.RedefinitionStrategy.Listener.StreamWriting.toSystemError())
       // TODO: make weaver logging configurable in general and with regard to '.withTransformationsOnly()' in particular
       .with(AgentBuilder.Listener.StreamWriting.toSystemError().withTransformationsOnly())
@@ -86,23 +95,50 @@ public class ConstructorMockTransformer<T> implements AutoCloseable {
           .and(not(anyOf(transformerBuilder.excludedSuperClasses)))
       )
       .transform((builder, typeDescription, classLoader, module) ->
-        builder.visit(
-          new AsmVisitorWrapper
-            .ForDeclaredMethods()
-            .constructor(any(), new ConstructorMockMethodVisitorWrapper(transformerBuilder.logVerbose))
-            .writerFlags(COMPUTE_FRAMES)
-            .readerFlags(0)
-        )
+        builder.visit(createVisitorWrapper(transformerBuilder.logVerbose))
       )
       .installOn(getInstrumentation());
     resetTransformationOnClose = transformerBuilder.resetTransformationOnClose;
+
+    // Super classes of a loaded class are always loaded, too. So just walk up the hierarchy instead of matching all
+    // loaded classes against the type matcher.
+    for (
+      Class<?> type = transformerBuilder.targetClass;
+      type != null && type != Object.class;
+      type = type.getSuperclass()
+    )
+    {
+      if (
+        !type.isInterface()
+          && !transformerBuilder.excludedSuperClasses.contains(type)
+          && getInstrumentation().isModifiableClass(type)
+      )
+        transformedClasses.add(type);
+    }
+    WeavingTransaction.retransform(transformedClasses);
   }
 
   @Override
   public void close() {
-    if (resetTransformationOnClose)
-      transformer.reset(getInstrumentation(), RETRANSFORMATION);
     getInstrumentation().removeTransformer(transformer);
+    if (resetTransformationOnClose)
+      WeavingTransaction.retransform(transformedClasses);
+  }
+
+  /**
+   * Create the ASM visitor wrapper instrumenting constructors for constructor mocking. This is useful for applying
+   * constructor mock instrumentation in the same transformation as other instrumentations of the same class, e.g. via
+   * {@code Weaver.Builder.addVisitor}, instead of installing a separate transformer.
+   *
+   * @param logVerbose log each instrumented constructor?
+   * @return visitor wrapper to be applied to the target class and its super classes
+   */
+  public static AsmVisitorWrapper createVisitorWrapper(boolean logVerbose) {
+    return new AsmVisitorWrapper
+      .ForDeclaredMethods()
+      .constructor(any(), new ConstructorMockMethodVisitorWrapper(logVerbose))
+      .writerFlags(COMPUTE_FRAMES)
+      .readerFlags(0);
   }
 
   private static class ConstructorMockMethodVisitorWrapper implements MethodVisitorWrapper {
@@ -126,6 +162,19 @@ public class ConstructorMockTransformer<T> implements AutoCloseable {
         System.out.println("[Constructor Mock Transformer] Mocking constructor " + instrumentedMethod);
       return new ConstructorMockMethodVisitor(instrumentedType, methodVisitor, instrumentedMethod);
     }
+
+    // Equal visitor wrappers instrument equally, which enables weavers to reuse each other's woven classes
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof ConstructorMockMethodVisitorWrapper
+        && logVerbose == ((ConstructorMockMethodVisitorWrapper) other).logVerbose;
+    }
+
+    @Override
+    public int hashCode() {
+      return Boolean.hashCode(logVerbose);
+    }
   }
 
 }
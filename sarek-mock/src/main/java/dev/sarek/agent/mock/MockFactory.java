@@ -10,9 +10,7 @@ import org.objenesis.ObjenesisStd;
 import org.objenesis.instantiator.ObjectInstantiator;
 
 import java.lang.reflect.Method;
-import java.util.LinkedHashSet;
 import java.util.Queue;
-import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 
@@ -91,7 +89,7 @@ import static net.bytebuddy.matcher.ElementMatchers.*;
 public class MockFactory<T> implements AutoCloseable {
   private Class<T> targetClass;
   private Weaver weaver;
-  private ConstructorMockTransformer constructorMockTransformer;
+  private final boolean mockConstructors;
   private final boolean mockInstanceMethods;
   private boolean closed = false;
   private ObjectInstantiator<T> instantiator;
@@ -124,6 +122,8 @@ public class MockFactory<T> implements AutoCloseable {
       this.targetClass = targetClass;
       weaverBuilder = Weaver.forTypes(
         is(targetClass).or(isSuperTypeOf(targetClass).and(not(is(Object.class)))));
+      // All loaded classes matched by the weaver are part of the target class hierarchy, no need to search elsewhere
+      weaverBuilder.discoverHierarchyOf(targetClass);
       weaverBuilder.provideHashCodeEquals(true);
     }
 
@@ -345,6 +345,33 @@ public class MockFactory<T> implements AutoCloseable {
       return this;
     }
 
+    /**
+     * Hold registered mock/spy instances weakly, i.e. instances which are no longer referenced elsewhere can be
+     * garbage-collected without being unregistered explicitly via {@link MockFactory#removeTarget(Object)}. This is
+     * useful for long-running processes creating many short-lived mocks or spies.
+     *
+     * @param value true if targets should be held weakly, false if they should be held until removed (default)
+     * @return the same builder instance, i.e. {@code this}
+     */
+    public Builder<T> weakTargets(boolean value) {
+      weaverBuilder.weakTargets(value);
+      return this;
+    }
+
+    /**
+     * Keep the target class (and its super types) instrumented when closing the mock factory, only deactivating mock
+     * behaviour. A mock factory created later for the same target class with the same configuration reuses the
+     * instrumentation instead of retransforming classes again, which can save a lot of time in large test suites. See
+     * {@link Weaver.Builder#dormantWeaving(boolean)} for details, e.g. how to reset dormant instrumentations.
+     *
+     * @param value true if instrumentations should be kept for reuse, false if they should be reset (default)
+     * @return the same builder instance, i.e. {@code this}
+     */
+    public Builder<T> dormantWeaving(boolean value) {
+      weaverBuilder.dormantWeaving(value);
+      return this;
+    }
+
     /**
      * Explicitly exclude certain methods from mocking/stubbing for the given target class.
      *
@@ -438,18 +465,13 @@ public class MockFactory<T> implements AutoCloseable {
   private MockFactory(Builder<T> builder) {
     targetClass = builder.targetClass;
     mockInstanceMethods = builder.mockInstanceMethods;
+    mockConstructors = builder.mockType == MockType.MOCK && builder.global;
+    if (mockConstructors) {
+      // Instrument constructors in the same transformation as the weaver's advices, i.e. the target class and its
+      // super types (except for excluded ones) are only retransformed once when building and once when closing
+      builder.weaverBuilder.addVisitor(ConstructorMockTransformer.createVisitorWrapper(false));
+    }
     if (builder.mockType == MockType.MOCK) {
-      if (builder.global) {
-        Set<Class<?>> classHierarchy = new LinkedHashSet<>();
-        classHierarchy.add(builder.targetClass);
-        Class<?> superClass = builder.targetClass.getSuperclass();
-        while (!superClass.equals(Object.class)) {
-          classHierarchy.add(superClass);
-          superClass = superClass.getSuperclass();
-        }
-        // TODO: option to exclude super types also for constructor mocking
-        constructorMockTransformer = ConstructorMockTransformer.forClass(targetClass).build();
-      }
       if (mockInstanceMethods) {
         builder.weaverBuilder.addAdvice(
           not(builder.excludedMethods),
@@ -469,7 +491,7 @@ public class MockFactory<T> implements AutoCloseable {
     // Important: First build weaver, then activate constructor mock targets. Otherwise the weaver builder might call
     // already mocked constructors during setup.
     weaver = builder.weaverBuilder.build();
-    if (constructorMockTransformer != null)
+    if (mockConstructors)
       ConstructorMockRegistry.activate(targetClass);
   }
 
@@ -623,6 +645,9 @@ public class MockFactory<T> implements AutoCloseable {
    * unregistering all existing mocks, emptying global mock polling queues and freeing other resources. After closing
    * the mock factory, please do not use it anymore.
    * <p>
+   * With {@link Builder#dormantWeaving(boolean) dormant weaving}, the code instrumentation is kept for reuse by later mock
+   * factories, but mock behaviour is deactivated nevertheless.
+   * <p>
    * Please note that this method makes {@link MockFactory} implement {@link AutoCloseable}, which means that you can
    * use try-with-resources in order to let the JVM take care of automatically closing it.
    */
@@ -638,10 +663,6 @@ public class MockFactory<T> implements AutoCloseable {
       targetClass = null;
       weaver.unregisterTransformer();
       weaver = null;
-      if (constructorMockTransformer != null) {
-        constructorMockTransformer.close();
-        constructorMockTransformer = null;
-      }
       System.out.println("Mock closed");
     }
     catch (Exception e) {
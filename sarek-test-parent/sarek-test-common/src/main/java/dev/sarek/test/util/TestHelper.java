@@ -4,6 +4,9 @@ import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodHandles.Lookup;
 import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
 
 public class TestHelper {
   private static final ClassLoader classLoader = TestHelper.class.getClassLoader();
@@ -36,4 +39,38 @@ public class TestHelper {
     }
   }
 
+  /**
+   * Create a class loader loading a separate copy of the given class child-first, i.e. the class is different from the
+   * one found by name via the system class loader. All other classes, e.g. Sarek classes used by woven advice code, are
+   * loaded parent-first.
+   *
+   * @param className name of the class to be loaded child-first
+   * @return new child-first class loader
+   */
+  public static URLClassLoader childFirstClassLoader(String className) {
+    String classFile = className.replace('.', '/') + ".class";
+    URL classFileURL = classLoader.getResource(classFile);
+    if (classFileURL == null)
+      throw new IllegalArgumentException("Cannot find class file for " + className);
+    String classFileLocation = classFileURL.toString();
+    URL classPathRoot;
+    try {
+      classPathRoot = new URL(classFileLocation.substring(0, classFileLocation.length() - classFile.length()));
+    }
+    catch (MalformedURLException malformedURLException) {
+      throw new RuntimeException(malformedURLException);
+    }
+    return new URLClassLoader(new URL[] { classPathRoot }, classLoader) {
+      @Override
+      protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        if (!name.equals(className))
+          return super.loadClass(name, resolve);
+        synchronized (getClassLoadingLock(name)) {
+          Class<?> clazz = findLoadedClass(name);
+          return clazz == null ? findClass(name) : clazz;
+        }
+      }
+    };
+  }
+
 }
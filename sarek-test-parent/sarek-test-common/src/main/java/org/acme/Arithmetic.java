@@ -0,0 +1,23 @@
+package org.acme;
+
+public class Arithmetic {
+  public double half(double value) {
+    return value / 2;
+  }
+
+  public static int triple(int value) {
+    return 3 * value;
+  }
+
+  public static int negate(int value) {
+    return -value;
+  }
+
+  public static long square(long value) {
+    return value * value;
+  }
+
+  public static double root(double value) {
+    return Math.sqrt(value);
+  }
+}
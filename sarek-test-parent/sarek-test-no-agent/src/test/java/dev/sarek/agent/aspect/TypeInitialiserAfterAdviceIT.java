@@ -6,6 +6,9 @@ import org.junit.After;
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
 
+import java.lang.reflect.Field;
+
+import static dev.sarek.test.util.TestHelper.childFirstClassLoader;
 import static dev.sarek.test.util.TestHelper.isClassLoaded;
 import static net.bytebuddy.matcher.ElementMatchers.is;
 import static org.junit.Assert.assertEquals;
@@ -61,4 +64,34 @@ public class TypeInitialiserAfterAdviceIT {
     assertEquals(33, UnderTest.staticBlockCounter);
   }
 
+  @Test
+  public void typeInitialiserInChildClassLoader() throws Exception {
+    final String CLASS_NAME = "org.acme.UnderTest";
+
+    // Load (but do not initialise) a copy of the class under test in a child-first class loader, i.e. the woven class is
+    // different from the one found by name via the system class loader
+    ClassLoader childClassLoader = childFirstClassLoader(CLASS_NAME);
+    Class<?> childClass = Class.forName(CLASS_NAME, false, childClassLoader);
+
+    weaver = Weaver
+      .forTypes(is(childClass))
+      .addAdvice(
+        null,
+        new TypeInitialiserAroundAdvice(
+          null,
+          (clazz, proceedMode, throwable) -> {
+            Field staticBlockCounter = clazz.getField("staticBlockCounter");
+            staticBlockCounter.setInt(null, staticBlockCounter.getInt(null) * 11);
+          }
+        )
+      )
+      .addTargets(childClass)
+      .build();
+
+    // Trigger type initialiser
+    Class.forName(CLASS_NAME, true, childClassLoader);
+    // 3 static blocks, each incrementing by 1 -> 3. The after advice multiplies by 11 -> 33.
+    assertEquals(33, childClass.getField("staticBlockCounter").getInt(null));
+  }
+
 }
@@ -1,7 +1,14 @@
 package dev.sarek.agent.aspect;
 
+import dev.sarek.agent.Agent;
+import dev.sarek.agent.WeavingTransaction;
 import dev.sarek.junit4.SarekRunner;
 import dev.sarek.test.util.SeparateJVM;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.matcher.ElementMatcher;
+import org.acme.Arithmetic;
+import org.acme.Base;
+import org.acme.Sub;
 import org.acme.UnderTest;
 import org.junit.After;
 import org.junit.Test;
@@ -9,9 +16,14 @@ import org.junit.experimental.categories.Category;
 import org.junit.runner.RunWith;
 
 import java.io.File;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.ref.WeakReference;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Collection;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static dev.sarek.test.util.TestHelper.isClassLoaded;
 import static net.bytebuddy.matcher.ElementMatchers.*;
@@ -308,6 +320,262 @@ public class WeaverIT {
     assertEquals(3, new UnderTest().add(1, 2));
   }
 
+  @Test
+  public void dynamicDispatch() {
+    weaver = Weaver
+      .forTypes(is(UnderTest.class))
+      .addAdvice(
+        named("greet"),
+        new StaticMethodAroundAdvice(
+          null,
+          (method, args, proceedMode, returnValue, throwable) -> "Hi world!"
+        )
+      )
+      .addAdvice(
+        takesArguments(String.class),
+        new ConstructorAroundAdvice((constructor, args) -> args[0] = "ADVISED", null)
+      )
+      .dynamicDispatch(true)
+      .addTargets(UnderTest.class)
+      .build();
+
+    // Registered class is affected by aspect
+    assertEquals("Hi world!", UnderTest.greet("Sir"));
+    assertEquals("ADVISED", new UnderTest("whatever").getName());
+
+    // Unregistering the target invalidates the advices bound to the dynamic call sites
+    weaver.removeTarget(UnderTest.class);
+    assertEquals("Hello Sir", UnderTest.greet("Sir"));
+    assertEquals("whatever", new UnderTest("whatever").getName());
+
+    // Re-registering the target makes the call sites pick up the advices again
+    weaver.addTarget(UnderTest.class);
+    assertEquals("Hi world!", UnderTest.greet("Sir"));
+    assertEquals("ADVISED", new UnderTest("whatever").getName());
+
+    // After unregistering the transformer, the class is unaffected by the aspect
+    weaver.unregisterTransformer();
+    assertEquals("Hello Sir", UnderTest.greet("Sir"));
+    assertEquals("whatever", new UnderTest("whatever").getName());
+  }
+
+  @Test
+  public void primitiveAfterAdvice() {
+    UnderTest underTest = new UnderTest();
+    UUID uuid = new UUID(3, 4);
+    Arithmetic arithmetic = new Arithmetic();
+
+    weaver = Weaver
+      .forTypes(is(UnderTest.class).or(is(UUID.class)).or(is(Arithmetic.class)))
+      .addAdvice(
+        named("add").or(named("multiply")).or(named("getMostSignificantBits")),
+        new InstanceMethodAroundAdvice((target, method, args) -> !method.getName().equals("multiply"), null)
+          .withIntAfter((target, method, proceedMode, returnValue, throwable) -> proceedMode ? returnValue * 11 : 42)
+          .withLongAfter((target, method, proceedMode, returnValue, throwable) -> returnValue + 1)
+      )
+      .addAdvice(
+        named("half"),
+        new InstanceMethodAroundAdvice(null, null)
+          .withDoubleAfter((target, method, proceedMode, returnValue, throwable) -> returnValue * 10)
+      )
+      .addTargets(underTest, uuid, arithmetic)
+      .build();
+
+    // Registered targets are affected by specialised int, long and double after advices
+    assertEquals(55, underTest.add(2, 3));
+    assertEquals(42, underTest.multiply(2, 3));
+    assertEquals(4, uuid.getMostSignificantBits());
+    assertEquals(15.0, arithmetic.half(3), 0.0);
+
+    // Unregistered instances are unaffected
+    assertEquals(5, new UnderTest().add(2, 3));
+    assertEquals(3, new UUID(3, 4).getMostSignificantBits());
+    assertEquals(1.5, new Arithmetic().half(3), 0.0);
+
+    // After unregistering the transformer, the targets are unaffected by the aspect
+    weaver.unregisterTransformer();
+    assertEquals(5, underTest.add(2, 3));
+    assertEquals(3, uuid.getMostSignificantBits());
+    assertEquals(1.5, arithmetic.half(3), 0.0);
+  }
+
+  @Test
+  public void primitiveAfterAdviceFallback() {
+    UnderTest underTest = new UnderTest();
+    UUID uuid = new UUID(3, 4);
+
+    weaver = Weaver
+      .forTypes(is(UnderTest.class).or(is(UUID.class)))
+      .addAdvice(
+        named("add").or(named("getMostSignificantBits")),
+        new InstanceMethodAroundAdvice(
+          null,
+          (target, method, args, proceedMode, returnValue, throwable) -> (int) returnValue + (int) args[0] * 100
+        )
+          .withLongAfter((target, method, proceedMode, returnValue, throwable) -> returnValue + 1)
+      )
+      .addTargets(underTest, uuid)
+      .build();
+
+    // Without a specialised int after advice, the generic one is used, receiving boxed arguments and results
+    assertEquals(205, underTest.add(2, 3));
+    assertEquals(4, uuid.getMostSignificantBits());
+  }
+
+  @Test
+  public void staticPrimitiveAfterAdvice() {
+    weaver = Weaver
+      .forTypes(is(Arithmetic.class))
+      .addAdvice(
+        named("triple").or(named("square")).or(named("root")),
+        new StaticMethodAroundAdvice((method, args) -> !method.getName().equals("triple"), null)
+          .withIntAfter((method, proceedMode, returnValue, throwable) -> proceedMode ? returnValue : 42)
+          .withLongAfter((method, proceedMode, returnValue, throwable) -> returnValue + 1)
+          .withDoubleAfter((method, proceedMode, returnValue, throwable) -> returnValue * 10)
+      )
+      .addAdvice(
+        named("negate"),
+        new StaticMethodAroundAdvice(null, (method, args, proceedMode, returnValue, throwable) -> (int) returnValue - 1)
+      )
+      .addTargets(Arithmetic.class)
+      .build();
+
+    // Specialised int, long and double after advices
+    assertEquals(42, Arithmetic.triple(2));
+    assertEquals(10, Arithmetic.square(3));
+    assertEquals(30.0, Arithmetic.root(9), 0.0);
+    // Without a specialised int after advice, the generic one is used
+    assertEquals(-3, Arithmetic.negate(2));
+
+    // After unregistering the transformer, the target class is unaffected by the aspect
+    weaver.unregisterTransformer();
+    assertEquals(6, Arithmetic.triple(2));
+    assertEquals(9, Arithmetic.square(3));
+    assertEquals(3.0, Arithmetic.root(9), 0.0);
+    assertEquals(-2, Arithmetic.negate(2));
+  }
+
+  @Test
+  public void weakTargets() throws InterruptedException {
+    UnderTest underTest = new UnderTest();
+
+    weaver = Weaver
+      .forTypes(is(UnderTest.class))
+      .addAdvice(
+        named("add"),
+        new InstanceMethodAroundAdvice(null, (target, method, args, proceedMode, returnValue, throwable) -> 42)
+      )
+      .weakTargets(true)
+      .addTargets(underTest)
+      .build();
+
+    // Weakly held target is affected by aspect as long as it is alive
+    assertEquals(42, underTest.add(2, 3));
+    assertEquals(5, new UnderTest().add(2, 3));
+
+    // After the target has been garbage-collected, it is dropped from the advice registry without being removed
+    WeakReference<UnderTest> targetReference = new WeakReference<>(underTest);
+    int registrySize = Aspect.adviceRegistry.size();
+    //noinspection UnusedAssignment
+    underTest = null;
+    for (int i = 0; i < 50 && (targetReference.get() != null || Aspect.adviceRegistry.size() >= registrySize); i++) {
+      System.gc();
+      Thread.sleep(20);
+    }
+    assertNull(targetReference.get());
+    assertEquals(registrySize - 1, Aspect.adviceRegistry.size());
+  }
+
+  @Test
+  public void precomputeInParallel() {
+    Base base = new Base(11);
+    Sub sub = new Sub("foo");
+
+    // Count transformations of the target classes via the type matcher of another weaver. It is evaluated once per
+    // transformation, but never matches. Transformations during the JVM's retransformation are counted separately:
+    // A transformer added before Sarek's one flags the retransformation, the flag is reset after each batch.
+    AtomicBoolean retransforming = new AtomicBoolean();
+    ClassFileTransformer retransformationFlag =
+      (loader, className, classBeingRedefined, protectionDomain, classFileBuffer) -> {
+        if (classBeingRedefined == Base.class || classBeingRedefined == Sub.class)
+          retransforming.set(true);
+        return null;
+      };
+    WeavingTransaction.RetransformationListener retransformationFlagReset =
+      new WeavingTransaction.RetransformationListener() {
+        @Override
+        public void beforeRetransformation(Collection<Class<?>> classes) { }
+
+        @Override
+        public void afterRetransformation(Collection<Class<?>> classes) {
+          retransforming.set(false);
+        }
+      };
+    AtomicInteger transformations = new AtomicInteger();
+    AtomicInteger transformationsDuringRetransformation = new AtomicInteger();
+    Agent.getInstrumentation().addTransformer(retransformationFlag, true);
+    WeavingTransaction.addListener(retransformationFlagReset);
+    Weaver observer = Weaver
+      .forTypes(new ElementMatcher.Junction.AbstractBase<TypeDescription>() {
+        @Override
+        public boolean matches(TypeDescription typeDescription) {
+          if (typeDescription.represents(Base.class) || typeDescription.represents(Sub.class)) {
+            transformations.incrementAndGet();
+            if (retransforming.get())
+              transformationsDuringRetransformation.incrementAndGet();
+          }
+          return false;
+        }
+      })
+      .build();
+    transformations.set(0);
+
+    try {
+      for (int round = 1; round <= 2; round++) {
+        weaver = Weaver
+          .forTypes(is(Base.class).or(is(Sub.class)))
+          .addAdvice(
+            named("getId").or(named("getName")),
+            new InstanceMethodAroundAdvice(
+              (target, method, args) -> false,
+              (target, method, args, proceedMode, returnValue, throwable) ->
+                method.getName().equals("getId") ? 42 : "ADVISED"
+            )
+          )
+          .precomputeInParallel(true)
+          .addTargets(sub)
+          .build();
+
+        // Precomputation needs the original class files passed by the JVM, which are unknown before registering the
+        // weaver. So both classes are only transformed during the retransformation, nothing is precomputed.
+        assertEquals(2, transformations.getAndSet(0));
+        assertEquals(2, transformationsDuringRetransformation.getAndSet(0));
+
+        // Registered target is affected by aspect, unregistered one is not
+        assertEquals(42, sub.getId());
+        assertEquals("ADVISED", sub.getName());
+        assertEquals(11, base.getId());
+
+        // Precomputation is based on the class files remembered when registering the weaver, so both classes are only
+        // transformed in parallel before the retransformation. Afterwards, the remembered class files are dropped, i.e.
+        // the next round behaves the same.
+        weaver.unregisterTransformer();
+        weaver = null;
+        assertEquals(2, transformations.getAndSet(0));
+        assertEquals(0, transformationsDuringRetransformation.getAndSet(0));
+
+        // After unregistering the transformer, the target is unaffected by the aspect
+        assertEquals(1234, sub.getId());
+        assertEquals("foo", sub.getName());
+      }
+    }
+    finally {
+      observer.unregisterTransformer();
+      WeavingTransaction.removeListener(retransformationFlagReset);
+      Agent.getInstrumentation().removeTransformer(retransformationFlag);
+    }
+  }
+
   @Test
   public void constructorAdvice() {
     // Create weaver, directly registering a target class in the constructor
@@ -0,0 +1,56 @@
+package dev.sarek.agent.mock;
+
+import dev.sarek.junit4.SarekRunner;
+import dev.sarek.test.util.SeparateJVM;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+
+import java.lang.ref.WeakReference;
+
+import static dev.sarek.test.util.TestHelper.childFirstClassLoader;
+import static org.junit.Assert.*;
+
+@Category(SeparateJVM.class)
+@RunWith(SarekRunner.class)
+public class ClassUnloadingIT {
+  private static final String CLASS_NAME = "org.acme.UnderTest";
+
+  @Test
+  public void childClassLoaderIsCollectedAfterReset() throws Exception {
+    WeakReference<ClassLoader> childClassLoader = mockInChildClassLoader();
+
+    // After the mock factory has been closed, i.e. woven classes have been reset, Sarek registries (global instances,
+    // constructor mocks, woven methods, advice targets) must not keep the child class loader alive anymore
+    for (int i = 0; i < 50 && childClassLoader.get() != null; i++) {
+      System.gc();
+      Thread.sleep(20);
+    }
+    assertNull("child class loader should have been garbage-collected", childClassLoader.get());
+  }
+
+  private WeakReference<ClassLoader> mockInChildClassLoader() throws Exception {
+    // Load a copy of the class under test in a child-first class loader
+    ClassLoader childClassLoader = childFirstClassLoader(CLASS_NAME);
+    Class<?> childClass = Class.forName(CLASS_NAME, false, childClassLoader);
+
+    try (
+      MockFactory<?> mockFactory = MockFactory
+        .forClass(childClass)
+        .mockConstructors()
+        .addGlobalInstance()
+        .build()
+    )
+    {
+      // Constructor and instance method are mocked, the mock instance can be polled
+      Object mock = childClass.getConstructor().newInstance();
+      assertEquals(0, childClass.getMethod("add", int.class, int.class).invoke(mock, 2, 3));
+      assertSame(mock, mockFactory.pollGlobalInstance());
+    }
+
+    // After closing the mock factory, the class is reset
+    Object underTest = childClass.getConstructor().newInstance();
+    assertEquals(5, childClass.getMethod("add", int.class, int.class).invoke(underTest, 2, 3));
+    return new WeakReference<>(childClassLoader);
+  }
+}
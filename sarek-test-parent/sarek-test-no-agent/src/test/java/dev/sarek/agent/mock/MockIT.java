@@ -1,6 +1,9 @@
 package dev.sarek.agent.mock;
 
+import dev.sarek.agent.Agent;
+import dev.sarek.agent.WeavingTransaction;
 import dev.sarek.agent.aspect.InstanceMethodAroundAdvice;
+import dev.sarek.agent.aspect.Weaver;
 import dev.sarek.junit4.SarekRunner;
 import dev.sarek.test.util.SeparateJVM;
 import org.acme.Base;
@@ -15,6 +18,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.lang.instrument.ClassFileTransformer;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
@@ -22,6 +26,7 @@ import java.time.Year;
 import java.util.GregorianCalendar;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.util.Calendar.*;
 import static net.bytebuddy.matcher.ElementMatchers.named;
@@ -53,6 +58,106 @@ public class MockIT {
     assertEquals("foo", new Sub("foo").getName());
   }
 
+  @Test
+  public void canBatchMockFactoriesInWeavingTransaction() {
+    MockFactory<FinalClass> mockFactory1;
+    MockFactory<Sub> mockFactory2;
+    try (WeavingTransaction transaction = WeavingTransaction.begin()) {
+      mockFactory1 = MockFactory.forClass(FinalClass.class).mockConstructors().addGlobalInstance().build();
+      mockFactory2 = MockFactory.forClass(Sub.class).mockConstructors().build();
+      // Classes are only transformed when closing the transaction
+      assertEquals(5, new FinalClass().add(2, 3));
+      assertEquals("foo", new Sub("foo").getName());
+    }
+
+    // After closing the transaction, all classes have been transformed in one batch
+    assertEquals(0, new FinalClass().add(2, 3));
+    assertNull(new Sub("foo").getName());
+
+    // Resetting the mock factories can be batched, too
+    try (WeavingTransaction transaction = WeavingTransaction.begin()) {
+      mockFactory1.close();
+      mockFactory2.close();
+    }
+    assertEquals(5, new FinalClass().add(2, 3));
+    assertEquals("foo", new Sub("foo").getName());
+  }
+
+  @Test
+  public void retransformsOnceOnBuildAndOnceOnClose() {
+    AtomicInteger retransformations = new AtomicInteger();
+    ClassFileTransformer retransformationCounter = addRetransformationCounter(FinalClass.class, retransformations);
+
+    try {
+      // Constructor mock and advices are woven in the same transformation
+      try (
+        MockFactory<FinalClass> mockFactory = MockFactory
+          .forClass(FinalClass.class)
+          .mockConstructors()
+          .addGlobalInstance()
+          .build()
+      )
+      {
+        assertEquals(0, new FinalClass().add(2, 3));
+        assertEquals(1, retransformations.get());
+      }
+      assertEquals(5, new FinalClass().add(2, 3));
+      assertEquals(2, retransformations.get());
+    }
+    finally {
+      Agent.getInstrumentation().removeTransformer(retransformationCounter);
+    }
+  }
+
+  @Test
+  public void canReuseDormantWeaving() {
+    AtomicInteger retransformations = new AtomicInteger();
+    ClassFileTransformer retransformationCounter = addRetransformationCounter(FinalClass.class, retransformations);
+
+    try {
+      try (MockFactory<FinalClass> mockFactory = createDormantMockFactory()) {
+        assertEquals(0, new FinalClass().add(2, 3));
+      }
+      // After closing the mock factory, the class is still woven, but mock behaviour is inactive
+      assertEquals(5, new FinalClass().add(2, 3));
+      assertEquals(1, retransformations.get());
+
+      // An equally configured mock factory reuses the woven class without retransforming it
+      try (MockFactory<FinalClass> mockFactory = createDormantMockFactory()) {
+        assertEquals(0, new FinalClass().add(2, 3));
+      }
+      assertEquals(5, new FinalClass().add(2, 3));
+      assertEquals(1, retransformations.get());
+
+      // Resetting dormant weavers retransforms the class once more
+      Weaver.resetDormantWeavers();
+      assertEquals(5, new FinalClass().add(2, 3));
+      assertEquals(2, retransformations.get());
+    }
+    finally {
+      Agent.getInstrumentation().removeTransformer(retransformationCounter);
+      Weaver.resetDormantWeavers();
+    }
+  }
+
+  private MockFactory<FinalClass> createDormantMockFactory() {
+    return MockFactory.forClass(FinalClass.class).dormantWeaving(true).mockConstructors().addGlobalInstance().build();
+  }
+
+  /**
+   * Count retransformations of the target class
+   */
+  private ClassFileTransformer addRetransformationCounter(Class<?> targetClass, AtomicInteger retransformations) {
+    ClassFileTransformer retransformationCounter =
+      (loader, className, classBeingRedefined, protectionDomain, classFileBuffer) -> {
+        if (classBeingRedefined == targetClass)
+          retransformations.incrementAndGet();
+        return null;
+      };
+    Agent.getInstrumentation().addTransformer(retransformationCounter, true);
+    return retransformationCounter;
+  }
+
   @Test
   public void canMockBootstrapClass_UUID() {
     // Try with resources works for Mock because it implements AutoCloseable
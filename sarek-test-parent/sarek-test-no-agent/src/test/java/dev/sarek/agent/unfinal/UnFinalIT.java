@@ -1,21 +1,32 @@
 package dev.sarek.agent.unfinal;
 
+import dev.sarek.agent.ClassFileCache;
 import dev.sarek.junit4.SarekRunner;
 import dev.sarek.test.util.SeparateJVM;
 import dev.sarek.test.util.SimpleMock;
+import org.acme.Base;
 import org.acme.FinalClass;
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
 import org.junit.runner.RunWith;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
 import java.lang.reflect.Modifier;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
 import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.*;
 
 @Category(SeparateJVM.class)
 @RunWith(SarekRunner.class)
@@ -109,4 +120,66 @@ public class UnFinalIT {
         .toString()
     );
   }
+
+  @Test
+  public void skipClassesWithoutFinalModifiers() throws IOException, IllegalClassFormatException {
+    ClassFileTransformer transformer = UnFinalTransformer.createTransformer(false);
+    // Final field, but neither final class nor final methods -> nothing to definalise
+    assertNull(transformer.transform(null, "org/acme/Base", null, null, readClassFile(Base.class)));
+    assertNotNull(transformer.transform(null, "org/acme/FinalClass", null, null, readClassFile(FinalClass.class)));
+  }
+
+  @Test
+  public void useClassFileCache() throws IOException, IllegalClassFormatException {
+    String className = FinalClass.class.getName().replace('.', '/');
+    byte[] classFile = readClassFile(FinalClass.class);
+    Path cacheDirectory = Files.createTempDirectory("sarek-cache");
+    try {
+      ClassFileTransformer transformer = UnFinalTransformer.createTransformer(
+        false, UnFinalTransformer.createClassFileCache(cacheDirectory)
+      );
+
+      // Cache miss -> transform class file and store result in cache
+      byte[] transformedClassFile = transformer.transform(null, className, null, null, classFile);
+      assertNotNull(transformedClassFile);
+      List<Path> cacheEntries = getFiles(cacheDirectory);
+      assertEquals(1, cacheEntries.size());
+      assertArrayEquals(transformedClassFile, Files.readAllBytes(cacheEntries.get(0)));
+
+      // Cache hit -> return cached result, even if it was tampered with
+      byte[] tamperedClassFile = { (byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE };
+      Files.write(cacheEntries.get(0), tamperedClassFile);
+      assertArrayEquals(tamperedClassFile, transformer.transform(null, className, null, null, classFile));
+
+      // Different configuration -> different cache entry
+      UnFinalTransformer
+        .createTransformer(false, new ClassFileCache(cacheDirectory, "other", UnFinalTransformer.class))
+        .transform(null, className, null, null, classFile);
+      assertEquals(2, getFiles(cacheDirectory).size());
+    }
+    finally {
+      try (Stream<Path> files = Files.walk(cacheDirectory)) {
+        for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+          Files.delete(file);
+      }
+    }
+  }
+
+  private static byte[] readClassFile(Class<?> type) throws IOException {
+    String resourceName = type.getName().replace('.', '/') + ".class";
+    ByteArrayOutputStream classFile = new ByteArrayOutputStream();
+    try (InputStream inputStream = type.getClassLoader().getResourceAsStream(resourceName)) {
+      byte[] buffer = new byte[8192];
+      int bytesRead;
+      while ((bytesRead = inputStream.read(buffer)) != -1)
+        classFile.write(buffer, 0, bytesRead);
+    }
+    return classFile.toByteArray();
+  }
+
+  private static List<Path> getFiles(Path directory) throws IOException {
+    try (Stream<Path> files = Files.walk(directory)) {
+      return files.filter(Files::isRegularFile).collect(Collectors.toList());
+    }
+  }
 }
@@ -1,6 +1,7 @@
 package dev.sarek.agent.unfinal;
 
 import dev.sarek.agent.AgentException;
+import dev.sarek.agent.ClassFileCache;
 
 import java.lang.instrument.Instrumentation;
 import java.util.Arrays;
@@ -49,13 +50,17 @@ public class UnFinalAgent {
     // TODO: document available options
     List<String> options = Arrays.asList(commandLineOptions.trim().toLowerCase().split(","));
     verbose = options.contains("verbose");
+    ClassFileCache.setActive(options.contains("cache"));
     if (verbose)
       System.out.println(AGENT_PREFIX + "command line options = " + commandLineOptions);
   }
 
   private static void attachUnFinalTransformer(boolean logUnFinal) {
     instrumentation.addTransformer(
-      UnFinalTransformer.createTransformer(logUnFinal),
+      UnFinalTransformer.createTransformer(
+        logUnFinal,
+        ClassFileCache.isActive() ? UnFinalTransformer.createClassFileCache(ClassFileCache.DEFAULT_DIRECTORY) : null
+      ),
       false
     );
   }
@@ -1,5 +1,6 @@
 package dev.sarek.agent.unfinal;
 
+import dev.sarek.agent.ClassFileCache;
 import dev.sarek.agent.Transformer;
 import net.bytebuddy.jar.asm.ClassReader;
 import net.bytebuddy.jar.asm.ClassVisitor;
@@ -8,6 +9,7 @@ import net.bytebuddy.jar.asm.MethodVisitor;
 
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.reflect.Modifier;
+import java.nio.file.Path;
 import java.security.ProtectionDomain;
 
 import static net.bytebuddy.jar.asm.Opcodes.ASM8;
@@ -40,6 +42,17 @@ public class UnFinalTransformer extends ClassVisitor {
   private String className;
 
   public static ClassFileTransformer createTransformer(boolean logUnFinal) {
+    return createTransformer(logUnFinal, null);
+  }
+
+  /**
+   * @param logUnFinal     log each class and method being definalised. Because cache hits would not be logged, the
+   *                       class file cache is not used when logging is active.
+   * @param classFileCache optional persistent cache for transformed class files, see
+   *                       {@link #createClassFileCache(Path)}
+   * @return class file transformer removing {@code final} modifiers from classes and methods
+   */
+  public static ClassFileTransformer createTransformer(boolean logUnFinal, ClassFileCache classFileCache) {
     return new ClassFileTransformer() {
       @Override
       public byte[] transform(
@@ -51,13 +64,62 @@ public class UnFinalTransformer extends ClassVisitor {
       )
       {
         ClassReader classReader = new ClassReader(classfileBuffer);
-        ClassWriter classWriter = new ClassWriter(classReader, 0);
-        classReader.accept(new UnFinalTransformer(classWriter, logUnFinal), PARSING_FLAGS);
-        return classWriter.toByteArray();
+        // Most classes have nothing to definalise. Do not rewrite them or even look them up in the cache, but let the
+        // JVM use the original class file.
+        String canonicalClassName = classReader.getClassName().replace('/', '.');
+        if (!Transformer.shouldTransform(canonicalClassName) || !hasFinalModifiers(classReader))
+          return null;
+        if (classFileCache == null || logUnFinal)
+          return unFinal(classReader, logUnFinal);
+        return classFileCache.transform(classfileBuffer, classFile -> unFinal(classReader, false));
       }
     };
   }
 
+  /**
+   * @param directory root directory for class file caches, e.g. {@link ClassFileCache#DEFAULT_DIRECTORY}
+   * @return class file cache for unfinal transformations, to be used with {@link #createTransformer(boolean,
+   * ClassFileCache)}
+   */
+  public static ClassFileCache createClassFileCache(Path directory) {
+    // Transformer contains the exclude list, so changes to it also invalidate cache entries. The ASM class reader stands
+    // in for the ASM version shaded into ByteBuddy.
+    return new ClassFileCache(
+      directory, "unfinal:" + PARSING_FLAGS,
+      UnFinalTransformer.class, Transformer.class, ClassReader.class
+    );
+  }
+
+  /**
+   * Scan-only pass checking class and method access flags, skipping method bodies, debug info and stack map frames
+   *
+   * @param classReader reader for the class file to be checked
+   * @return {@code true} if the class itself or any of its methods is final
+   */
+  public static boolean hasFinalModifiers(ClassReader classReader) {
+    if ((classReader.getAccess() & Modifier.FINAL) != 0)
+      return true;
+    boolean[] hasFinalMethods = { false };
+    classReader.accept(
+      new ClassVisitor(ASM8) {
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+          if ((access & Modifier.FINAL) != 0)
+            hasFinalMethods[0] = true;
+          return null;
+        }
+      },
+      ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES
+    );
+    return hasFinalMethods[0];
+  }
+
+  private static byte[] unFinal(ClassReader classReader, boolean logUnFinal) {
+    ClassWriter classWriter = new ClassWriter(classReader, 0);
+    classReader.accept(new UnFinalTransformer(classWriter, logUnFinal), PARSING_FLAGS);
+    return classWriter.toByteArray();
+  }
+
   public UnFinalTransformer(ClassVisitor cv, boolean logUnFinal) {
     super(ASM8, cv);
     this.logUnFinal = logUnFinal;
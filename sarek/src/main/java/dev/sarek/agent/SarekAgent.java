@@ -48,6 +48,7 @@ public class SarekAgent {
     // TODO: document available options
     List<String> options = Arrays.asList(commandLineOptions.trim().toLowerCase().split(","));
     verbose = options.contains("verbose");
+    ClassFileCache.setActive(options.contains("cache"));
     if (verbose)
       System.out.println(AGENT_PREFIX + "command line options = " + commandLineOptions);
     unFinalActive = options.contains("unfinal");
@@ -55,7 +56,10 @@ public class SarekAgent {
 
   private static void attachUnFinalTransformer(boolean logUnFinal) {
     instrumentation.addTransformer(
-      UnFinalTransformer.createTransformer(logUnFinal),
+      UnFinalTransformer.createTransformer(
+        logUnFinal,
+        ClassFileCache.isActive() ? UnFinalTransformer.createClassFileCache(ClassFileCache.DEFAULT_DIRECTORY) : null
+      ),
       false
     );
   }